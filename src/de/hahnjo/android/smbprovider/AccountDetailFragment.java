@@ -1,15 +1,20 @@
 package de.hahnjo.android.smbprovider;
 
+import java.util.Collection;
+
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerCallback;
 import android.accounts.AccountManagerFuture;
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Fragment;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.os.Handler;
 import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.util.Log;
@@ -17,6 +22,10 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import de.hahnjo.android.smbprovider.account.SMBAccountAuthenticator;
+import de.hahnjo.android.smbprovider.provider.DocumentDatabase;
+import de.hahnjo.android.smbprovider.provider.MimeTypeResolver;
+import de.hahnjo.android.smbprovider.provider.OfflineSync;
+import de.hahnjo.android.smbprovider.provider.OfflineSyncService;
 
 /**
  * A {@link Fragment} that shows data about a single account. It also allows to edit this data.
@@ -34,6 +43,9 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 	private EditTextPreference username;
 	private EditTextPreference domain;
 	private EditTextPreference password;
+	private ListPreference backend;
+	private EditTextPreference mimeTypes;
+	private EditTextPreference offlineFolders;
 	private Preference status;
 
 	@Override
@@ -52,17 +64,28 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 		username = (EditTextPreference) findPreference(getString(R.string.preferences_username_key));
 		domain = (EditTextPreference) findPreference(getString(R.string.preferences_domain_key));
 		password = (EditTextPreference) findPreference(getString(R.string.preferences_password_key));
+		backend = (ListPreference) findPreference(getString(R.string.preferences_backend_key));
+		mimeTypes = (EditTextPreference) findPreference(getString(R.string.preferences_mimeTypes_key));
+		offlineFolders = (EditTextPreference) findPreference(getString(R.string.preferences_offlineFolders_key));
 		status = findPreference(getString(R.string.preferences_status_key));
 
 		server.setText(SMBAccountAuthenticator.getAccountServer(getActivity(), account));
 		username.setText(SMBAccountAuthenticator.getAccountUsername(getActivity(), account));
 		domain.setText(SMBAccountAuthenticator.getAccountDomain(getActivity(), account));
 		password.setText(SMBAccountAuthenticator.getAccountPassword(getActivity(), account));
+		backend.setValue(SMBAccountAuthenticator.getAccountBackend(getActivity(), account));
+		mimeTypes.setText(SMBAccountAuthenticator.getAccountMimeTypes(getActivity(), account));
+		// The pinned directories are read from the database, so they can only be edited once they have been loaded
+		offlineFolders.setEnabled(false);
+		new LoadOfflineFoldersThread().start();
 
 		server.setOnPreferenceChangeListener(this);
 		username.setOnPreferenceChangeListener(this);
 		domain.setOnPreferenceChangeListener(this);
 		password.setOnPreferenceChangeListener(this);
+		backend.setOnPreferenceChangeListener(this);
+		mimeTypes.setOnPreferenceChangeListener(this);
+		offlineFolders.setOnPreferenceChangeListener(this);
 
 		status.setOnPreferenceClickListener(this);
 
@@ -123,6 +146,8 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 		// The value would be set _AFTER_ this method has finished
 		if (preference instanceof EditTextPreference) {
 			((EditTextPreference) preference).setText((String) newValue);
+		} else if (preference instanceof ListPreference) {
+			((ListPreference) preference).setValue((String) newValue);
 		}
 
 		testConnection();
@@ -152,6 +177,7 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 
 			@Override
 			public void run(AccountManagerFuture<Boolean> future) {
+				SMBConnectionRegistry.getInstance().invalidate(account.name);
 				getActivity().onBackPressed();
 			}
 
@@ -161,7 +187,10 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 	private void saveAccountData() {
 		if (BuildConfig.DEBUG) Log.d(TAG, "saveAccountData");
 
-		AccountManager manager = SMBAccountAuthenticator.getAccountManager(getActivity().getApplicationContext());
+		Context context = getActivity().getApplicationContext();
+		boolean connectionChanged = hasConnectionChanged(context);
+
+		AccountManager manager = SMBAccountAuthenticator.getAccountManager(context);
 		manager.setUserData(account, SMBAccountAuthenticator.ACCOUNT_SERVER, server.getText());
 
 		if (!isEmpty(username)) {
@@ -183,6 +212,54 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 			manager.setUserData(account, SMBAccountAuthenticator.ACCOUNT_DOMAIN, null);
 			manager.setUserData(account, SMBAccountAuthenticator.ACCOUNT_PASSWORD, null);
 		}
+
+		manager.setUserData(account, SMBAccountAuthenticator.ACCOUNT_BACKEND, backend.getValue());
+
+		if (!isEmpty(mimeTypes)) {
+			manager.setUserData(account, SMBAccountAuthenticator.ACCOUNT_MIME_TYPES, mimeTypes.getText());
+		} else {
+			manager.setUserData(account, SMBAccountAuthenticator.ACCOUNT_MIME_TYPES, null);
+		}
+		MimeTypeResolver.getInstance().loadOverrides(context);
+
+		if (offlineFolders.isEnabled()) {
+			new SaveOfflineFoldersThread(offlineFolders.getText()).start();
+		}
+
+		if (connectionChanged) {
+			// The pooled connection still uses the old data. It is kept otherwise, because its streams and uploads may still be running.
+			SMBConnectionRegistry.getInstance().invalidate(account.name);
+		}
+	}
+
+	/**
+	 * @return true, if the server, the backend or the credentials in the preferences differ from the saved ones
+	 */
+	private boolean hasConnectionChanged(Context context) {
+		if (!isSameValue(server.getText(), SMBAccountAuthenticator.getAccountServer(context, account)) ||
+			!isSameValue(backend.getValue(), SMBAccountAuthenticator.getAccountBackend(context, account))) {
+			return true;
+		}
+
+		String savedUsername = SMBAccountAuthenticator.getAccountUsername(context, account);
+		if (!isSameValue(username.getText(), savedUsername)) {
+			return true;
+		} else if (isEmpty(username)) {
+			// Domain and password are not used without a username
+			return false;
+		}
+		return !isSameValue(domain.getText(), SMBAccountAuthenticator.getAccountDomain(context, account)) ||
+			!isSameValue(password.getText(), SMBAccountAuthenticator.getAccountPassword(context, account));
+	}
+
+	/**
+	 * @return true, if both values are equal. Empty values are not saved, so they are equal to null.
+	 */
+	private static boolean isSameValue(String value, String savedValue) {
+		if (value == null || value.length() == 0) {
+			return savedValue == null || savedValue.length() == 0;
+		}
+		return value.equals(savedValue);
 	}
 
 	private void testConnection() {
@@ -225,6 +302,68 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 				password.setSummary("****");
 			}
 		}
+
+		backend.setSummary(backend.getEntry());
+
+		// MIME-Types are optional
+		if (isEmpty(mimeTypes)) {
+			mimeTypes.setSummary(R.string.preferences_mimeTypes_summary);
+		} else {
+			mimeTypes.setSummary(mimeTypes.getText());
+		}
+
+		// Offline folders are optional
+		if (isEmpty(offlineFolders)) {
+			offlineFolders.setSummary(R.string.preferences_offlineFolders_summary);
+		} else {
+			offlineFolders.setSummary(offlineFolders.getText());
+		}
+	}
+
+	private class LoadOfflineFoldersThread extends Thread {
+
+		private final Context context = getActivity().getApplicationContext();
+
+		@Override
+		public void run() {
+			final String text = OfflineSync.formatPaths(account.name, DocumentDatabase.getInstance(context).getPinnedDirectories(account.name + "/"));
+
+			Activity activity = getActivity();
+			if (activity == null) {
+				return;
+			}
+			activity.runOnUiThread(new Runnable() {
+
+				@Override
+				public void run() {
+					offlineFolders.setText(text);
+					offlineFolders.setEnabled(true);
+					updatePreferences();
+				}
+
+			});
+		}
+
+	}
+
+	private class SaveOfflineFoldersThread extends Thread {
+
+		private final Context context = getActivity().getApplicationContext();
+		private final String text;
+
+		SaveOfflineFoldersThread(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public void run() {
+			Collection<String> documentIds = OfflineSync.parsePaths(account.name, text);
+			if (DocumentDatabase.getInstance(context).setPinnedDirectories(account.name + "/", documentIds)) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "The offline folders have changed, starting a sync");
+				OfflineSyncService.start(context);
+			}
+		}
+
 	}
 
 	private class TestConnectionThread extends Thread {
@@ -242,8 +381,11 @@ public class AccountDetailFragment extends PreferenceFragment implements Prefere
 
 			});
 
-			SMBConnection connection = new SMBConnection(server.getText(), username.getText(), domain.getText(), password.getText());
+			SMBConnection connection = new SMBConnection(server.getText(), username.getText(), domain.getText(), password.getText(),
+				backend.getValue());
 			final boolean test = connection.test();
+			// The backend may have established a session of its own
+			connection.close();
 
 			getActivity().runOnUiThread(new Runnable() {
 
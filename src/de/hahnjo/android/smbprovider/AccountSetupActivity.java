@@ -8,12 +8,14 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import de.hahnjo.android.smbprovider.account.SMBAccountAuthenticator;
+import de.hahnjo.android.smbprovider.backend.SMBBackends;
 
 /**
  * The {@link Activity} that allows the user to setup a new {@link Account}.
@@ -31,6 +33,7 @@ public class AccountSetupActivity extends PreferenceActivity implements Preferen
 	private EditTextPreference username;
 	private EditTextPreference domain;
 	private EditTextPreference password;
+	private ListPreference backend;
 	private Preference status;
 
 	@Override
@@ -44,6 +47,7 @@ public class AccountSetupActivity extends PreferenceActivity implements Preferen
 		username = (EditTextPreference) findPreference(getString(R.string.preferences_username_key));
 		domain = (EditTextPreference) findPreference(getString(R.string.preferences_domain_key));
 		password = (EditTextPreference) findPreference(getString(R.string.preferences_password_key));
+		backend = (ListPreference) findPreference(getString(R.string.preferences_backend_key));
 		status = findPreference(getString(R.string.preferences_status_key));
 
 		name.setOnPreferenceChangeListener(this);
@@ -51,6 +55,8 @@ public class AccountSetupActivity extends PreferenceActivity implements Preferen
 		username.setOnPreferenceChangeListener(this);
 		domain.setOnPreferenceChangeListener(this);
 		password.setOnPreferenceChangeListener(this);
+		backend.setValue(SMBBackends.DEFAULT_TYPE);
+		backend.setOnPreferenceChangeListener(this);
 
 		status.setOnPreferenceClickListener(this);
 
@@ -101,9 +107,12 @@ public class AccountSetupActivity extends PreferenceActivity implements Preferen
 		// The value would be set _AFTER_ this method has finished
 		if (preference instanceof EditTextPreference) {
 			((EditTextPreference) preference).setText((String) newValue);
+		} else if (preference instanceof ListPreference) {
+			((ListPreference) preference).setValue((String) newValue);
 		}
 		// If some of the data changed that is relevant for the connection, retest it
-		if (!isEmpty(server) && (preference == server || preference == username || preference == domain || preference == password)) {
+		if (!isEmpty(server) && (preference == server || preference == username || preference == domain || preference == password ||
+			preference == backend)) {
 			testConnection();
 		}
 
@@ -161,6 +170,7 @@ public class AccountSetupActivity extends PreferenceActivity implements Preferen
 		Bundle options = new Bundle();
 		options.putString(SMBAccountAuthenticator.ACCOUNT_NAME, name);
 		options.putString(SMBAccountAuthenticator.ACCOUNT_SERVER, server.getText());
+		options.putString(SMBAccountAuthenticator.ACCOUNT_BACKEND, backend.getValue());
 
 		if (!isEmpty(username)) {
 			options.putString(SMBAccountAuthenticator.ACCOUNT_USERNAME, username.getText());
@@ -242,6 +252,8 @@ public class AccountSetupActivity extends PreferenceActivity implements Preferen
 				password.setSummary("****");
 			}
 		}
+
+		backend.setSummary(backend.getEntry());
 	}
 
 	private class TestConnectionThread extends Thread {
@@ -259,8 +271,11 @@ public class AccountSetupActivity extends PreferenceActivity implements Preferen
 
 			});
 
-			SMBConnection connection = new SMBConnection(server.getText(), username.getText(), domain.getText(), password.getText());
+			SMBConnection connection = new SMBConnection(server.getText(), username.getText(), domain.getText(), password.getText(),
+				backend.getValue());
 			final boolean test = connection.test();
+			// The backend may have established a session of its own
+			connection.close();
 
 			runOnUiThread(new Runnable() {
 
@@ -1,57 +1,164 @@
 package de.hahnjo.android.smbprovider;
 
-import java.net.MalformedURLException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import android.accounts.Account;
 import android.content.Context;
 import android.util.Log;
 import de.hahnjo.android.smbprovider.account.SMBAccountAuthenticator;
-import jcifs.smb.NtlmPasswordAuthentication;
-import jcifs.smb.SmbFile;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+import de.hahnjo.android.smbprovider.backend.SMBBackend;
+import de.hahnjo.android.smbprovider.backend.SMBBackends;
 
 /**
- * A utility class for handling a connection to an SMB server.
+ * A utility class for handling a connection to an SMB server. The requests are sent by the {@link SMBBackend} that has been selected for the
+ * account. Every request holds one of the permits of the server while it is sent, see {@link #openPath(String)}.
  */
 public class SMBConnection {
 
 	private static final String TAG = SMBConnection.class.getSimpleName();
 
-	private static final String BASE_URL = "smb://%s";
+	/**
+	 * The maximum time (in milliseconds) that a request waits for a permit of the server.
+	 */
+	private static final long PERMIT_TIMEOUT = 30 * 1000;
 
 	private final String server;
-	private final NtlmPasswordAuthentication authentication;
+	private final SMBBackend backend;
+	private final Semaphore permits;
+
+	private volatile long lastUsed = System.currentTimeMillis();
+	private int openHandles = 0;
+	private boolean closing = false;
 
 	/**
 	 * Creates a new connection that gets its details from the given {@link Account}.
+	 *
+	 * @see SMBConnectionRegistry#get(Context, String)
 	 */
 	public SMBConnection(Context context, Account account) {
 		this(SMBAccountAuthenticator.getAccountServer(context, account), SMBAccountAuthenticator.getAccountUsername(context, account),
-			SMBAccountAuthenticator.getAccountDomain(context, account), SMBAccountAuthenticator.getAccountPassword(context, account));
+			SMBAccountAuthenticator.getAccountDomain(context, account), SMBAccountAuthenticator.getAccountPassword(context, account),
+			SMBAccountAuthenticator.getAccountBackend(context, account));
+	}
+
+	/**
+	 * Creates a new connection with the given details and the backend of this type.
+	 */
+	public SMBConnection(String server, String username, String domain, String password, String backendType) {
+		this(server, username, domain, password, backendType, new Semaphore(SMBConnectionRegistry.MAX_SESSIONS_PER_SERVER, true));
 	}
 
 	/**
-	 * Creates a new connection with the given details.
+	 * Creates a new connection with the given details that shares the permits for concurrent requests with other connections to the same server.
 	 */
-	public SMBConnection(String server, String username, String domain, String password) {
+	SMBConnection(String server, String username, String domain, String password, String backendType, Semaphore permits) {
+		this(server, SMBBackends.create(backendType, server, username, domain, password), permits);
+	}
+
+	/**
+	 * Creates a new connection that sends its requests through the given backend.
+	 */
+	public SMBConnection(String server, SMBBackend backend) {
+		this(server, backend, new Semaphore(SMBConnectionRegistry.MAX_SESSIONS_PER_SERVER, true));
+	}
+
+	private SMBConnection(String server, SMBBackend backend, Semaphore permits) {
 		this.server = server;
-		if (username == null || username.length() == 0) {
-			authentication = NtlmPasswordAuthentication.ANONYMOUS;
-		} else {
-			authentication = new NtlmPasswordAuthentication(domain, username, password);
-		}
+		this.backend = backend;
+		this.permits = permits;
+	}
+
+	/**
+	 * @return the server of this connection
+	 */
+	public String getServer() {
+		return server;
+	}
+
+	/**
+	 * @return the backend that sends the requests of this connection. Its files do not take any permits, so requests should be sent through
+	 * {@link #openPath(String)}.
+	 */
+	public SMBBackend getBackend() {
+		return backend;
 	}
 
 	/**
-	 * @return the opened {@link SmbFile} that points to that path
+	 * Blocks until another request may be sent to the server. Every successful call must be followed by a call to {@link #release()}.
+	 *
+	 * @throws InterruptedIOException if the thread was interrupted or no permit became free within {@link #PERMIT_TIMEOUT}
 	 */
-	public SmbFile openPath(String path) {
-		String url = String.format(BASE_URL, server) + path;
+	void acquire() throws InterruptedIOException {
 		try {
-			return new SmbFile(url, authentication);
-		} catch (MalformedURLException e) {
-			Log.e(TAG, "Error occurred while opening a path", e);
-			return null;
+			if (!permits.tryAcquire(PERMIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new InterruptedIOException("No request to " + server + " could be sent within " + PERMIT_TIMEOUT + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request to " + server);
 		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Allows another request to be sent to the server.
+	 */
+	void release() {
+		permits.release();
+	}
+
+	synchronized void onHandleOpened() {
+		openHandles++;
+	}
+
+	synchronized void onHandleClosed() {
+		openHandles--;
+		if (openHandles == 0 && closing) {
+			closeBackend();
+		}
+	}
+
+	/**
+	 * @return true, if this connection has no open streams or readers and has not sent any request since that time (in milliseconds)
+	 */
+	public synchronized boolean isIdleSince(long time) {
+		return openHandles == 0 && lastUsed < time;
+	}
+
+	/**
+	 * Closes the backend of this connection once its open streams and readers have been closed. It must not be used for new requests afterwards.
+	 */
+	public synchronized void close() {
+		if (closing) {
+			return;
+		}
+		closing = true;
+		if (openHandles == 0) {
+			closeBackend();
+		}
+	}
+
+	private void closeBackend() {
+		// Closing the sessions sends requests, so it must not block the caller
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				backend.close();
+			}
+
+		}, "SMBConnection close " + server).start();
+	}
+
+	/**
+	 * @return the {@link RemoteFile} that points to that path or null, if the path is invalid. It takes a permit for every request it sends.
+	 */
+	public RemoteFile openPath(String path) {
+		RemoteFile file = backend.openPath(path);
+		return file == null ? null : new ThrottledFile(this, file);
 	}
 
 	/**
@@ -59,7 +166,7 @@ public class SMBConnection {
 	 */
 	public boolean test() {
 		try {
-			SmbFile root = openPath("/");
+			RemoteFile root = openPath("/");
 			return root.exists();
 		} catch (Throwable t) {
 			Log.e(TAG, "Error occurred while testing the connection", t);
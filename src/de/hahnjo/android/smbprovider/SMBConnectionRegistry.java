@@ -0,0 +1,172 @@
+package de.hahnjo.android.smbprovider;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.account.SMBAccountAuthenticator;
+
+/**
+ * A registry that keeps one long-lived {@link SMBConnection} per {@link Account}. Because every connection keeps its backend, the already
+ * established session can be reused for all requests of an account instead of setting up a new one.
+ */
+public class SMBConnectionRegistry {
+
+	private static final String TAG = SMBConnectionRegistry.class.getSimpleName();
+
+	/**
+	 * Connections that were not used for this time (in milliseconds) are evicted.
+	 */
+	public static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * The maximum number of concurrent requests that are sent to one server.
+	 */
+	public static final int MAX_SESSIONS_PER_SERVER = 4;
+
+	private static SMBConnectionRegistry instance = null;
+
+	/**
+	 * @return the registry that is shared in this process
+	 */
+	public static synchronized SMBConnectionRegistry getInstance() {
+		if (instance == null) {
+			instance = new SMBConnectionRegistry();
+		}
+		return instance;
+	}
+
+	private final ConcurrentMap<String, Entry> connections = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, Semaphore> serverPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	private SMBConnectionRegistry() {
+	}
+
+	/**
+	 * @return the connection for the account with the given name (case-insensitive) or null, if there is no such account
+	 */
+	public SMBConnection get(Context context, String accountName) {
+		evictIdle();
+
+		String key = getKey(accountName);
+		Entry entry = connections.get(key);
+		if (entry == null) {
+			Account account = SMBAccountAuthenticator.getAccount(context, accountName);
+			if (account == null) {
+				Log.w(TAG, "There is no account with the name " + accountName);
+				return null;
+			}
+
+			if (BuildConfig.DEBUG) Log.d(TAG, "Creating a new connection for " + accountName);
+			String server = SMBAccountAuthenticator.getAccountServer(context, account);
+			if (server == null) {
+				Log.w(TAG, "The account " + accountName + " has no server");
+				return null;
+			}
+			SMBConnection connection = new SMBConnection(server, SMBAccountAuthenticator.getAccountUsername(context, account),
+				SMBAccountAuthenticator.getAccountDomain(context, account), SMBAccountAuthenticator.getAccountPassword(context, account),
+				SMBAccountAuthenticator.getAccountBackend(context, account), getServerPermits(server));
+
+			entry = new Entry(connection);
+			Entry existing = connections.putIfAbsent(key, entry);
+			if (existing != null) {
+				entry = existing;
+			}
+		}
+
+		entry.lastUsed = System.currentTimeMillis();
+		return entry.connection;
+	}
+
+	/**
+	 * Removes and closes the connection of the account with the given name, so that it will be recreated with the current account data when it is
+	 * needed.
+	 */
+	public void invalidate(String accountName) {
+		if (BuildConfig.DEBUG) Log.d(TAG, "invalidate: accountName=" + accountName);
+
+		Entry entry = connections.remove(getKey(accountName));
+		if (entry != null) {
+			entry.connection.close();
+		}
+	}
+
+	/**
+	 * Removes and closes all connections whose accounts are not contained in the given array.
+	 */
+	public void retainAccounts(Account[] accounts) {
+		Iterator<Map.Entry<String, Entry>> iterator = connections.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> entry = iterator.next();
+			String key = entry.getKey();
+
+			boolean found = false;
+			for (Account account : accounts) {
+				if (key.equals(getKey(account.name))) {
+					found = true;
+					break;
+				}
+			}
+
+			if (!found) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "Removing the connection of the deleted account " + key);
+				iterator.remove();
+				entry.getValue().connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Removes and closes all connections that have not been used for {@link #IDLE_TIMEOUT} and have no open streams or readers.
+	 */
+	private void evictIdle() {
+		long limit = System.currentTimeMillis() - IDLE_TIMEOUT;
+
+		Iterator<Map.Entry<String, Entry>> iterator = connections.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> entry = iterator.next();
+			if (entry.getValue().lastUsed < limit && entry.getValue().connection.isIdleSince(limit)) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "Evicting the idle connection of " + entry.getKey());
+				iterator.remove();
+				entry.getValue().connection.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the {@link Semaphore} that bounds the number of concurrent requests to this server
+	 */
+	private Semaphore getServerPermits(String server) {
+		String key = getKey(server);
+		Semaphore permits = serverPermits.get(key);
+		if (permits == null) {
+			permits = new Semaphore(MAX_SESSIONS_PER_SERVER, true);
+			Semaphore existing = serverPermits.putIfAbsent(key, permits);
+			if (existing != null) {
+				permits = existing;
+			}
+		}
+		return permits;
+	}
+
+	private static String getKey(String name) {
+		return name.toLowerCase(Locale.US);
+	}
+
+	private static class Entry {
+
+		final SMBConnection connection;
+		volatile long lastUsed;
+
+		Entry(SMBConnection connection) {
+			this.connection = connection;
+		}
+	}
+
+}
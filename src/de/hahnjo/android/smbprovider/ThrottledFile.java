@@ -0,0 +1,335 @@
+package de.hahnjo.android.smbprovider;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import de.hahnjo.android.smbprovider.backend.RangeReader;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A {@link RemoteFile} that holds a permit of its {@link SMBConnection} for every request it sends, so that the number of concurrent requests to a
+ * server stays bounded no matter how long the callers keep files, streams and readers open. The permit is never held while the caller waits for
+ * something else. The streams and readers are also counted as open handles of the connection, so it is not closed while they are in use.
+ */
+class ThrottledFile implements RemoteFile {
+
+	private final SMBConnection connection;
+	private final RemoteFile file;
+
+	ThrottledFile(SMBConnection connection, RemoteFile file) {
+		this.connection = connection;
+		this.file = file;
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public boolean exists() throws IOException {
+		connection.acquire();
+		try {
+			return file.exists();
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public boolean isDirectory() throws IOException {
+		connection.acquire();
+		try {
+			return file.isDirectory();
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public long lastModified() throws IOException {
+		connection.acquire();
+		try {
+			return file.lastModified();
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public long length() throws IOException {
+		connection.acquire();
+		try {
+			return file.length();
+		} finally {
+			connection.release();
+		}
+	}
+
+	/**
+	 * Holds one permit for the whole enumeration, because its requests continue one search on the server. The listener must not wait for other
+	 * requests to the same server.
+	 */
+	@Override
+	public void list(String wildcard, EntryListener listener) throws IOException {
+		connection.acquire();
+		try {
+			file.list(wildcard, listener);
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		InputStream input;
+		connection.acquire();
+		try {
+			input = file.getInputStream();
+		} finally {
+			connection.release();
+		}
+		connection.onHandleOpened();
+		return new ThrottledInputStream(input);
+	}
+
+	@Override
+	public RangeReader openRangeReader() throws IOException {
+		RangeReader reader;
+		connection.acquire();
+		try {
+			reader = file.openRangeReader();
+		} finally {
+			connection.release();
+		}
+		connection.onHandleOpened();
+		return new ThrottledRangeReader(reader);
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		OutputStream output;
+		connection.acquire();
+		try {
+			output = file.getOutputStream();
+		} finally {
+			connection.release();
+		}
+		connection.onHandleOpened();
+		return new ThrottledOutputStream(output);
+	}
+
+	@Override
+	public void renameTo(RemoteFile destination) throws IOException {
+		// The backend only knows its own files
+		RemoteFile target = destination instanceof ThrottledFile ? ((ThrottledFile) destination).file : destination;
+		connection.acquire();
+		try {
+			file.renameTo(target);
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public void delete() throws IOException {
+		connection.acquire();
+		try {
+			file.delete();
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public void mkdir() throws IOException {
+		connection.acquire();
+		try {
+			file.mkdir();
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public void createNewFile() throws IOException {
+		connection.acquire();
+		try {
+			file.createNewFile();
+		} finally {
+			connection.release();
+		}
+	}
+
+	@Override
+	public void setHidden(boolean hidden) throws IOException {
+		connection.acquire();
+		try {
+			file.setHidden(hidden);
+		} finally {
+			connection.release();
+		}
+	}
+
+	/**
+	 * Closes the handle of a stream or reader. It is also closed if no permit could be taken, so that it does not stay open on the server.
+	 */
+	private void closeHandle(Closeable handle) throws IOException {
+		boolean permitted = true;
+		try {
+			connection.acquire();
+		} catch (InterruptedIOException e) {
+			permitted = false;
+		}
+
+		try {
+			handle.close();
+		} finally {
+			if (permitted) {
+				connection.release();
+			}
+			connection.onHandleClosed();
+		}
+	}
+
+	private class ThrottledInputStream extends FilterInputStream {
+
+		private boolean closed = false;
+
+		ThrottledInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			connection.acquire();
+			try {
+				return in.read();
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			connection.acquire();
+			try {
+				return in.read(buffer, offset, length);
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			connection.acquire();
+			try {
+				return in.skip(n);
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			closeHandle(in);
+		}
+	}
+
+	private class ThrottledOutputStream extends FilterOutputStream {
+
+		private boolean closed = false;
+
+		ThrottledOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			connection.acquire();
+			try {
+				out.write(b);
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			connection.acquire();
+			try {
+				out.write(buffer, offset, length);
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			connection.acquire();
+			try {
+				out.flush();
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			closeHandle(out);
+		}
+	}
+
+	private class ThrottledRangeReader implements RangeReader {
+
+		private final RangeReader reader;
+		private boolean closed = false;
+
+		ThrottledRangeReader(RangeReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public long length() throws IOException {
+			connection.acquire();
+			try {
+				return reader.length();
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+			connection.acquire();
+			try {
+				return reader.read(position, buffer, offset, length);
+			} finally {
+				connection.release();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			closeHandle(reader);
+		}
+	}
+
+}
@@ -11,6 +11,8 @@ import android.os.Bundle;
 import android.util.Log;
 import de.hahnjo.android.smbprovider.AccountSetupActivity;
 import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.backend.SMBBackend;
+import de.hahnjo.android.smbprovider.backend.SMBBackends;
 
 /**
  * An {@link AbstractAccountAuthenticator} for SMB {@link Account}s. Also contains various utility methods concerning accounts.
@@ -26,6 +28,8 @@ public class SMBAccountAuthenticator extends AbstractAccountAuthenticator {
 	public static final String ACCOUNT_USERNAME = "username";
 	public static final String ACCOUNT_DOMAIN = "domain";
 	public static final String ACCOUNT_PASSWORD = "password";
+	public static final String ACCOUNT_MIME_TYPES = "mimeTypes";
+	public static final String ACCOUNT_BACKEND = "backend";
 
 	private final Context context;
 
@@ -173,6 +177,21 @@ public class SMBAccountAuthenticator extends AbstractAccountAuthenticator {
 		return getAccountUserData(context, account, ACCOUNT_DOMAIN);
 	}
 
+	/**
+	 * @return this account's overrides of MIME-Types, for example "nfo=text/plain, mkv=video/x-matroska"
+	 */
+	public static String getAccountMimeTypes(Context context, Account account) {
+		return getAccountUserData(context, account, ACCOUNT_MIME_TYPES);
+	}
+
+	/**
+	 * @return this account's type of {@link SMBBackend}
+	 */
+	public static String getAccountBackend(Context context, Account account) {
+		String backend = getAccountUserData(context, account, ACCOUNT_BACKEND);
+		return backend == null ? SMBBackends.DEFAULT_TYPE : backend;
+	}
+
 	/**
 	 * @return this account's password
 	 */
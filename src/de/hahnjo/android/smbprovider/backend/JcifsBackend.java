@@ -0,0 +1,226 @@
+package de.hahnjo.android.smbprovider.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+
+import android.util.Log;
+import jcifs.Config;
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+import jcifs.smb.SmbRandomAccessFile;
+
+/**
+ * The {@link SMBBackend} that uses JCIFS, which only speaks SMB1. JCIFS shares one session per server and authentication between all of its
+ * clients in this process and closes it along with the transport once that has been idle for the socket timeout.
+ */
+public class JcifsBackend implements SMBBackend {
+
+	private static final String TAG = JcifsBackend.class.getSimpleName();
+
+	private static final String BASE_URL = "smb://%s";
+
+	/**
+	 * The maximum number of entries that JCIFS requests with every FIND_FIRST2 / FIND_NEXT2.
+	 */
+	private static final int ENTRIES_PER_REQUEST = Config.getInt("jcifs.smb.client.listCount", 200);
+
+	private final String baseUrl;
+	private final NtlmPasswordAuthentication authentication;
+
+	public JcifsBackend(String server, String username, String domain, String password) {
+		this.baseUrl = String.format(BASE_URL, server);
+		if (username == null || username.length() == 0) {
+			authentication = NtlmPasswordAuthentication.ANONYMOUS;
+		} else {
+			authentication = new NtlmPasswordAuthentication(domain, username, password);
+		}
+	}
+
+	@Override
+	public RemoteFile openPath(String path) {
+		try {
+			return new JcifsFile(new SmbFile(baseUrl + path, authentication));
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "Error occurred while opening a path", e);
+			return null;
+		}
+	}
+
+	@Override
+	public int getEntriesPerListRequest() {
+		return ENTRIES_PER_REQUEST;
+	}
+
+	/**
+	 * Does nothing, because the sessions of JCIFS are shared with every other backend that uses the same credentials on this server. JCIFS closes
+	 * them itself once they are idle.
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * @return the name of this file without the trailing slash that JCIFS appends to directories and shares
+	 */
+	private static String getName(SmbFile file) {
+		String name = file.getName();
+		return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+	}
+
+	private static class JcifsFile implements RemoteFile {
+
+		/**
+		 * The attribute of a file without any other attributes, which JCIFS does not make public.
+		 */
+		private static final int ATTR_NORMAL = 0x80;
+
+		final SmbFile file;
+
+		JcifsFile(SmbFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public String getName() {
+			return JcifsBackend.getName(file);
+		}
+
+		@Override
+		public boolean exists() throws IOException {
+			return file.exists();
+		}
+
+		@Override
+		public boolean isDirectory() throws IOException {
+			return file.isDirectory();
+		}
+
+		@Override
+		public long lastModified() throws IOException {
+			return file.lastModified();
+		}
+
+		@Override
+		public long length() throws IOException {
+			return file.length();
+		}
+
+		@Override
+		public void list(String wildcard, final EntryListener listener) throws IOException {
+			if (wildcard != null) {
+				for (SmbFile child : file.listFiles(wildcard)) {
+					listener.onEntry(toEntry(child));
+				}
+				return;
+			}
+
+			final IOException[] error = new IOException[1];
+			file.listFiles(new SmbFileFilter() {
+
+				@Override
+				public boolean accept(SmbFile child) throws SmbException {
+					if (error[0] == null) {
+						try {
+							listener.onEntry(toEntry(child));
+						} catch (IOException e) {
+							error[0] = e;
+						}
+					}
+
+					// We already have what we need, so don't let JCIFS collect the SmbFiles
+					return false;
+				}
+
+			});
+			if (error[0] != null) {
+				throw error[0];
+			}
+		}
+
+		private static RemoteEntry toEntry(SmbFile child) throws SmbException {
+			// The attributes are still cached from the enumeration response, so this does not send any requests
+			boolean directory = child.isDirectory();
+			long lastModified = child.lastModified();
+			boolean complete = child.getType() != SmbFile.TYPE_FILESYSTEM || lastModified != 0;
+			return new RemoteEntry(JcifsBackend.getName(child), directory, lastModified, directory ? 0 : child.length(), complete);
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return file.getInputStream();
+		}
+
+		@Override
+		public RangeReader openRangeReader() throws IOException {
+			return new JcifsRangeReader(new SmbRandomAccessFile(file, "r"));
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return file.getOutputStream();
+		}
+
+		@Override
+		public void renameTo(RemoteFile destination) throws IOException {
+			file.renameTo(((JcifsFile) destination).file);
+		}
+
+		@Override
+		public void delete() throws IOException {
+			file.delete();
+		}
+
+		@Override
+		public void mkdir() throws IOException {
+			file.mkdir();
+		}
+
+		@Override
+		public void createNewFile() throws IOException {
+			file.createNewFile();
+		}
+
+		@Override
+		public void setHidden(boolean hidden) throws IOException {
+			int attributes = file.getAttributes() & ~SmbFile.ATTR_DIRECTORY;
+			attributes = hidden ? attributes | SmbFile.ATTR_HIDDEN : attributes & ~SmbFile.ATTR_HIDDEN;
+			// Attributes of 0 would leave them unchanged
+			file.setAttributes(attributes == 0 ? ATTR_NORMAL : attributes);
+		}
+	}
+
+	private static class JcifsRangeReader implements RangeReader {
+
+		private final SmbRandomAccessFile file;
+		private long position = 0;
+
+		JcifsRangeReader(SmbRandomAccessFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public long length() throws IOException {
+			return file.length();
+		}
+
+		@Override
+		public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+			if (position != this.position) {
+				file.seek(position);
+			}
+			int read = file.read(buffer, offset, length);
+			this.position = read > 0 ? position + read : -1;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+}
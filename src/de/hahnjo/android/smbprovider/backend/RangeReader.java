@@ -0,0 +1,23 @@
+package de.hahnjo.android.smbprovider.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * An open handle of a {@link RemoteFile} that reads ranges at arbitrary offsets. It is not thread-safe, so concurrent readers need their own
+ * instances.
+ */
+public interface RangeReader extends Closeable {
+
+	/**
+	 * @return the size of the file (in bytes)
+	 */
+	long length() throws IOException;
+
+	/**
+	 * Reads at most length bytes at this position of the file into the buffer.
+	 *
+	 * @return the number of bytes that were read or -1, if the position is at the end of the file
+	 */
+	int read(long position, byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,29 @@
+package de.hahnjo.android.smbprovider.backend;
+
+/**
+ * An entry of a directory enumeration with the attributes that the server returned along with it.
+ */
+public class RemoteEntry {
+
+	/**
+	 * The name of the entry without a trailing slash.
+	 */
+	public final String name;
+	public final boolean directory;
+	public final long lastModified;
+	public final long size;
+
+	/**
+	 * False, if the enumeration did not contain all attributes of this entry. They have to be queried with a request of their own then.
+	 */
+	public final boolean complete;
+
+	public RemoteEntry(String name, boolean directory, long lastModified, long size, boolean complete) {
+		this.name = name;
+		this.directory = directory;
+		this.lastModified = lastModified;
+		this.size = size;
+		this.complete = complete;
+	}
+
+}
@@ -0,0 +1,75 @@
+package de.hahnjo.android.smbprovider.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A file or directory on the server of an {@link SMBBackend}. Attributes that have been queried once may be cached, so a new instance should be
+ * opened to see changes.
+ */
+public interface RemoteFile {
+
+	/**
+	 * The interface that receives the entries of a directory enumeration.
+	 */
+	interface EntryListener {
+
+		/**
+		 * Called for every entry in the order the server returns them. This is called on the listing thread, so it should return quickly.
+		 */
+		void onEntry(RemoteEntry entry) throws IOException;
+	}
+
+	/**
+	 * @return the name of this file or directory without a trailing slash
+	 */
+	String getName();
+
+	boolean exists() throws IOException;
+
+	boolean isDirectory() throws IOException;
+
+	long lastModified() throws IOException;
+
+	long length() throws IOException;
+
+	/**
+	 * Enumerates this directory. The attributes of the entries are taken from the enumeration responses, so this does not send a request per
+	 * entry.
+	 *
+	 * @param wildcard a pattern like "*.jpg" that the server filters the names with or null, to list all entries
+	 */
+	void list(String wildcard, EntryListener listener) throws IOException;
+
+	/**
+	 * @return a stream that reads this file from the beginning
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * @return a reader for ranges at arbitrary offsets of this file
+	 */
+	RangeReader openRangeReader() throws IOException;
+
+	/**
+	 * @return a stream that replaces the content of this file
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Renames this file or directory to the destination, which must be on the same share.
+	 */
+	void renameTo(RemoteFile destination) throws IOException;
+
+	void delete() throws IOException;
+
+	void mkdir() throws IOException;
+
+	void createNewFile() throws IOException;
+
+	/**
+	 * Sets or clears the hidden attribute of this file, so that file managers on the server do not show it.
+	 */
+	void setHidden(boolean hidden) throws IOException;
+}
@@ -0,0 +1,27 @@
+package de.hahnjo.android.smbprovider.backend;
+
+/**
+ * The transport that talks to one SMB server with the credentials of one account. Everything the app does on the server goes through the
+ * {@link RemoteFile}s of a backend, so the protocol implementation can be chosen per account.
+ *
+ * @see SMBBackends#create(String, String, String, String, String)
+ */
+public interface SMBBackend {
+
+	/**
+	 * @return the file or directory at this path, like "/share/directory/" or "/share/file", or null if the path is invalid. This does not send any
+	 * request to the server.
+	 */
+	RemoteFile openPath(String path);
+
+	/**
+	 * @return the maximum number of entries that the server returns for one request of a directory enumeration
+	 */
+	int getEntriesPerListRequest();
+
+	/**
+	 * Closes the sessions that this backend has established with the server for itself. Sessions that are shared with other backends must stay
+	 * open. Files that are still open cannot be used afterwards. This may send requests, so it must not be called on the main thread.
+	 */
+	void close();
+}
@@ -0,0 +1,40 @@
+package de.hahnjo.android.smbprovider.backend;
+
+import android.util.Log;
+
+/**
+ * A utility class that creates the {@link SMBBackend} that has been selected for an account.
+ */
+public class SMBBackends {
+
+	private static final String TAG = SMBBackends.class.getSimpleName();
+
+	/**
+	 * The type of the {@link JcifsBackend}, which speaks SMB1. It is used when an account has not selected any backend.
+	 */
+	public static final String TYPE_JCIFS = "jcifs";
+
+	/**
+	 * The type of the {@link SmbjBackend}, which speaks SMB2 and SMB3.
+	 */
+	public static final String TYPE_SMBJ = "smbj";
+
+	public static final String DEFAULT_TYPE = TYPE_JCIFS;
+
+	private SMBBackends() {
+	}
+
+	/**
+	 * @return a new backend of this type for the server with the given credentials. Unknown types fall back to {@link #DEFAULT_TYPE}.
+	 */
+	public static SMBBackend create(String type, String server, String username, String domain, String password) {
+		if (TYPE_SMBJ.equals(type)) {
+			return new SmbjBackend(server, username, domain, password);
+		}
+		if (type != null && !TYPE_JCIFS.equals(type)) {
+			Log.w(TAG, "Unknown backend " + type + ", using " + DEFAULT_TYPE);
+		}
+		return new JcifsBackend(server, username, domain, password);
+	}
+
+}
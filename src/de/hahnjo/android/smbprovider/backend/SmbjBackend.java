@@ -0,0 +1,553 @@
+package de.hahnjo.android.smbprovider.backend;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.security.bc.BCSecurityProvider;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskEntry;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import com.hierynomus.smbj.share.Share;
+import com.rapid7.client.dcerpc.mssrvs.ServerService;
+import com.rapid7.client.dcerpc.mssrvs.dto.NetShareInfo1;
+import com.rapid7.client.dcerpc.transport.SMBTransportFactories;
+
+/**
+ * The {@link SMBBackend} that uses smbj, which speaks SMB2 and SMB3. Unlike JCIFS, every backend has a client, a connection and a session of its
+ * own, which are established with the first request and closed by {@link #close()}. The shares of the server are enumerated over the server
+ * service (SRVSVC), which smbj does not implement itself.
+ */
+public class SmbjBackend implements SMBBackend {
+
+	private static final String TAG = SmbjBackend.class.getSimpleName();
+
+	/**
+	 * The timeout (in milliseconds) of requests and of the socket.
+	 */
+	private static final long TIMEOUT = 30 * 1000;
+
+	/**
+	 * smbj asks for as many entries as fit into one transaction of at least 64 KB. An entry takes about this many bytes with a name of average
+	 * length.
+	 */
+	private static final int ESTIMATED_ENTRY_SIZE = 150;
+	private static final int ENTRIES_PER_REQUEST = 64 * 1024 / ESTIMATED_ENTRY_SIZE;
+
+	/**
+	 * The share types of the server service that are disk shares. Administrative shares like C$ have a flag in the upper bits as well.
+	 */
+	private static final int SHARE_TYPE_MASK = 0xFF;
+	private static final int SHARE_TYPE_DISK = 0;
+
+	private final String host;
+	private final int port;
+	private final AuthenticationContext authentication;
+	private final SMBClient client;
+
+	private Connection connection;
+	private Session session;
+	private final Map<String, DiskShare> shares = new HashMap<String, DiskShare>();
+	private boolean closed = false;
+
+	public SmbjBackend(String server, String username, String domain, String password) {
+		// Like in an URL, the server may have a port
+		int colon = server.indexOf(':');
+		if (colon >= 0 && colon == server.lastIndexOf(':')) {
+			host = server.substring(0, colon);
+			port = Integer.parseInt(server.substring(colon + 1));
+		} else {
+			host = server;
+			port = -1;
+		}
+
+		if (username == null || username.length() == 0) {
+			authentication = AuthenticationContext.anonymous();
+		} else {
+			authentication = new AuthenticationContext(username, password == null ? new char[0] : password.toCharArray(), domain);
+		}
+
+		// The MD4 digest of NTLM is missing from the security provider of Android, so smbj must use the bundled Bouncy Castle
+		SmbConfig config = SmbConfig.builder()
+			.withMultiProtocolNegotiate(true)
+			.withSecurityProvider(new BCSecurityProvider())
+			.withTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+			.withSoTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+			.build();
+		client = new SMBClient(config);
+	}
+
+	@Override
+	public RemoteFile openPath(String path) {
+		if (!path.startsWith("/")) {
+			Log.e(TAG, "The path " + path + " is not absolute");
+			return null;
+		}
+		return new SmbjFile(this, path);
+	}
+
+	@Override
+	public int getEntriesPerListRequest() {
+		return ENTRIES_PER_REQUEST;
+	}
+
+	/**
+	 * Closes the client along with its connection, which logs off the session of this backend.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		shares.clear();
+		session = null;
+		connection = null;
+		client.close();
+	}
+
+	/**
+	 * @return the session of this backend. A connection that has been lost is established again.
+	 */
+	private synchronized Session getSession() throws IOException {
+		if (closed) {
+			throw new IOException("The backend for " + host + " has been closed");
+		}
+
+		try {
+			if (connection == null || !connection.isConnected()) {
+				shares.clear();
+				session = null;
+				connection = port < 0 ? client.connect(host) : client.connect(host, port);
+			}
+			if (session == null) {
+				session = connection.authenticate(authentication);
+			}
+		} catch (SMBRuntimeException e) {
+			throw toIOException(e);
+		}
+		return session;
+	}
+
+	/**
+	 * @return the connected share with this name
+	 */
+	private synchronized DiskShare getShare(String name) throws IOException {
+		DiskShare share = shares.get(name);
+		if (share != null && share.isConnected()) {
+			return share;
+		}
+
+		Share connected;
+		try {
+			connected = getSession().connectShare(name);
+			if (!(connected instanceof DiskShare)) {
+				connected.close();
+				throw new FileNotFoundException(name + " is not a disk share");
+			}
+		} catch (SMBRuntimeException e) {
+			throw toIOException(e);
+		}
+		shares.put(name, (DiskShare) connected);
+		return (DiskShare) connected;
+	}
+
+	/**
+	 * @return the largest number of bytes that one read or write request may transfer
+	 */
+	private synchronized int getMaxTransferSize() throws IOException {
+		getSession();
+		return Math.min(connection.getNegotiatedProtocol().getMaxReadSize(), connection.getNegotiatedProtocol().getMaxWriteSize());
+	}
+
+	/**
+	 * @return the names of the disk shares of the server
+	 */
+	private List<String> listShares() throws IOException {
+		ServerService service = new ServerService(SMBTransportFactories.SRVSVC.getTransport(getSession()));
+		List<String> names = new ArrayList<String>();
+		for (NetShareInfo1 share : service.getShares1()) {
+			if ((share.getType() & SHARE_TYPE_MASK) == SHARE_TYPE_DISK) {
+				names.add(share.getNetName());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * @return the exception of smbj, which is unchecked, as an {@link IOException}. Documents that do not exist throw a
+	 * {@link FileNotFoundException} like with JCIFS.
+	 */
+	private static IOException toIOException(SMBRuntimeException e) {
+		if (isNotFound(e)) {
+			FileNotFoundException notFound = new FileNotFoundException(e.getMessage());
+			notFound.initCause(e);
+			return notFound;
+		}
+		return new IOException(e);
+	}
+
+	private static boolean isNotFound(SMBRuntimeException e) {
+		if (!(e instanceof SMBApiException)) {
+			return false;
+		}
+		NtStatus status = ((SMBApiException) e).getStatus();
+		return status == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND || status == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND ||
+			status == NtStatus.STATUS_NO_SUCH_FILE || status == NtStatus.STATUS_BAD_NETWORK_NAME;
+	}
+
+	private static class SmbjFile implements RemoteFile {
+
+		private final SmbjBackend backend;
+		private final String name;
+		/**
+		 * The name of the share or null, if this is the server itself.
+		 */
+		private final String shareName;
+		/**
+		 * The path below the share with backslashes and without a trailing one. It is empty for the share itself.
+		 */
+		private final String sharePath;
+
+		private FileAllInformation information;
+
+		SmbjFile(SmbjBackend backend, String path) {
+			this.backend = backend;
+
+			// Without the leading slash and the trailing one of directories, so "/" becomes empty
+			String trimmed = path.length() <= 1 ? "" : path.substring(1, path.endsWith("/") ? path.length() - 1 : path.length());
+			name = trimmed.substring(trimmed.lastIndexOf('/') + 1);
+			int slash = trimmed.indexOf('/');
+			if (trimmed.length() == 0) {
+				shareName = null;
+				sharePath = "";
+			} else if (slash < 0) {
+				shareName = trimmed;
+				sharePath = "";
+			} else {
+				shareName = trimmed.substring(0, slash);
+				sharePath = trimmed.substring(slash + 1).replace('/', '\\');
+			}
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		private DiskShare getShare() throws IOException {
+			if (shareName == null) {
+				throw new FileNotFoundException("The server itself is not a file");
+			}
+			return backend.getShare(shareName);
+		}
+
+		/**
+		 * @return the attributes of this file, which are only queried once
+		 */
+		private FileAllInformation getInformation() throws IOException {
+			if (information == null) {
+				try {
+					information = getShare().getFileInformation(sharePath);
+				} catch (SMBRuntimeException e) {
+					throw toIOException(e);
+				}
+			}
+			return information;
+		}
+
+		@Override
+		public boolean exists() throws IOException {
+			try {
+				if (shareName == null) {
+					backend.getSession();
+				} else {
+					getInformation();
+				}
+				return true;
+			} catch (FileNotFoundException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public boolean isDirectory() throws IOException {
+			return shareName == null || getInformation().getStandardInformation().isDirectory();
+		}
+
+		@Override
+		public long lastModified() throws IOException {
+			return shareName == null ? 0 : getInformation().getBasicInformation().getLastWriteTime().toEpochMillis();
+		}
+
+		@Override
+		public long length() throws IOException {
+			return shareName == null || isDirectory() ? 0 : getInformation().getStandardInformation().getEndOfFile();
+		}
+
+		@Override
+		public void list(String wildcard, EntryListener listener) throws IOException {
+			try {
+				if (shareName == null) {
+					// The shares have no attributes
+					for (String share : backend.listShares()) {
+						listener.onEntry(new RemoteEntry(share, true, 0, 0, true));
+					}
+					return;
+				}
+
+				DiskShare share = getShare();
+				List<FileIdBothDirectoryInformation> entries = wildcard == null ? share.list(sharePath) : share.list(sharePath, wildcard);
+				for (FileIdBothDirectoryInformation entry : entries) {
+					String entryName = entry.getFileName();
+					if (".".equals(entryName) || "..".equals(entryName)) {
+						continue;
+					}
+					boolean directory = (entry.getFileAttributes() & FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue()) != 0;
+					listener.onEntry(new RemoteEntry(entryName, directory, entry.getLastWriteTime().toEpochMillis(),
+						directory ? 0 : entry.getEndOfFile(), true));
+				}
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+		}
+
+		/**
+		 * @return the opened file, which must be closed by the caller
+		 */
+		private File open(AccessMask access, SMB2CreateDisposition disposition) throws IOException {
+			try {
+				return getShare().openFile(sharePath, EnumSet.of(access), null, SMB2ShareAccess.ALL, disposition, null);
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new SmbjInputStream((SmbjRangeReader) openRangeReader());
+		}
+
+		@Override
+		public RangeReader openRangeReader() throws IOException {
+			int maxReadSize = backend.getMaxTransferSize();
+			return new SmbjRangeReader(open(AccessMask.GENERIC_READ, SMB2CreateDisposition.FILE_OPEN), maxReadSize);
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			int maxWriteSize = backend.getMaxTransferSize();
+			return new SmbjOutputStream(open(AccessMask.GENERIC_WRITE, SMB2CreateDisposition.FILE_OVERWRITE_IF), maxWriteSize);
+		}
+
+		@Override
+		public void renameTo(RemoteFile destination) throws IOException {
+			SmbjFile target = (SmbjFile) destination;
+			if (shareName == null || !shareName.equals(target.shareName)) {
+				throw new IOException("Cannot rename " + name + " to another share");
+			}
+
+			try {
+				DiskEntry entry = getShare().open(sharePath, EnumSet.of(AccessMask.DELETE), null, SMB2ShareAccess.ALL,
+					SMB2CreateDisposition.FILE_OPEN, null);
+				try {
+					entry.rename(target.sharePath, false);
+				} finally {
+					entry.close();
+				}
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+			information = null;
+		}
+
+		@Override
+		public void delete() throws IOException {
+			try {
+				// Like JCIFS, directories are deleted with everything in them
+				if (isDirectory()) {
+					getShare().rmdir(sharePath, true);
+				} else {
+					getShare().rm(sharePath);
+				}
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+			information = null;
+		}
+
+		@Override
+		public void mkdir() throws IOException {
+			try {
+				getShare().mkdir(sharePath);
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+			information = null;
+		}
+
+		@Override
+		public void createNewFile() throws IOException {
+			open(AccessMask.GENERIC_WRITE, SMB2CreateDisposition.FILE_CREATE).close();
+			information = null;
+		}
+
+		@Override
+		public void setHidden(boolean hidden) throws IOException {
+			// The attributes must be current, because all of them are replaced
+			information = null;
+			long attributes = getInformation().getBasicInformation().getFileAttributes() & ~FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue();
+			if (hidden) {
+				attributes |= FileAttributes.FILE_ATTRIBUTE_HIDDEN.getValue();
+			} else {
+				attributes &= ~FileAttributes.FILE_ATTRIBUTE_HIDDEN.getValue();
+			}
+			if (attributes == 0) {
+				// Attributes of 0 would leave them unchanged
+				attributes = FileAttributes.FILE_ATTRIBUTE_NORMAL.getValue();
+			}
+
+			try {
+				getShare().setFileInformation(sharePath, new FileBasicInformation(FileBasicInformation.DONT_SET, FileBasicInformation.DONT_SET,
+					FileBasicInformation.DONT_SET, FileBasicInformation.DONT_SET, attributes));
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+			information = null;
+		}
+	}
+
+	private static class SmbjRangeReader implements RangeReader {
+
+		private final File file;
+		private final int maxReadSize;
+
+		SmbjRangeReader(File file, int maxReadSize) {
+			this.file = file;
+			this.maxReadSize = maxReadSize;
+		}
+
+		@Override
+		public long length() throws IOException {
+			try {
+				return file.getFileInformation().getStandardInformation().getEndOfFile();
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+		}
+
+		@Override
+		public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+			try {
+				// The server rejects larger reads
+				return file.read(buffer, position, offset, Math.min(length, maxReadSize));
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				file.close();
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+		}
+	}
+
+	private static class SmbjInputStream extends InputStream {
+
+		private final SmbjRangeReader reader;
+		private long position = 0;
+
+		SmbjInputStream(SmbjRangeReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buffer = new byte[1];
+			return read(buffer, 0, 1) == 1 ? buffer[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			int read = reader.read(position, buffer, offset, length);
+			if (read > 0) {
+				position += read;
+			}
+			return read > 0 ? read : -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	private static class SmbjOutputStream extends OutputStream {
+
+		private final File file;
+		private final int maxWriteSize;
+		private long position = 0;
+
+		SmbjOutputStream(File file, int maxWriteSize) {
+			this.file = file;
+			this.maxWriteSize = maxWriteSize;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			try {
+				while (length > 0) {
+					// The server rejects larger writes
+					int written = file.write(buffer, position, offset, Math.min(length, maxWriteSize));
+					position += written;
+					offset += written;
+					length -= written;
+				}
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				file.close();
+			} catch (SMBRuntimeException e) {
+				throw toIOException(e);
+			}
+		}
+	}
+
+}
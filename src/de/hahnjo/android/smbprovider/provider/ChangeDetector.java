@@ -0,0 +1,273 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * A class that detects changes on the server in the directories that are watched, which are the ones listed recently and the pinned ones. For
+ * every poll, only the attributes of the directory itself are queried. It is listed again only when its lastModified has moved, and the new list
+ * is compared with the stored one, so that only the documents that actually changed are reported.
+ * <p>
+ * Every directory has its own interval, which becomes shorter when the directory changes and longer while it does not. Note that most servers
+ * only update the lastModified of a directory when entries are created, deleted or renamed, but not when a file is written in place.
+ */
+public class ChangeDetector {
+
+	private static final String TAG = ChangeDetector.class.getSimpleName();
+
+	/**
+	 * The intervals (in milliseconds) between two polls of one directory.
+	 */
+	private static final long INITIAL_INTERVAL = 60 * 1000;
+	private static final long MIN_INTERVAL = 15 * 1000;
+	private static final long MAX_INTERVAL = 30 * 60 * 1000;
+
+	/**
+	 * Directories that are not pinned are watched for this time (in milliseconds) after they were listed for the last time.
+	 */
+	private static final long WATCH_DURATION = 10 * 60 * 1000;
+
+	/**
+	 * The maximum number of directories that are watched. The directory that was listed longest ago and is not pinned is dropped first.
+	 */
+	private static final int MAX_WATCHES = 64;
+
+	/**
+	 * The interface that actually queries the server and reports the changes.
+	 */
+	public interface Target {
+
+		/**
+		 * @return the lastModified of this directory on the server or -1, if it could not be queried
+		 */
+		long getDirectoryLastModified(DocumentId documentId);
+
+		/**
+		 * Fetches and stores the list of this directory without notifying any client.
+		 *
+		 * @return the documents in this directory or null, if it could not be listed
+		 */
+		Document[] listDirectory(DocumentId documentId);
+
+		/**
+		 * Notifies the clients of the changed documents in this directory. The list contains the documents that were created, deleted or changed.
+		 */
+		void onDirectoryChanged(String documentId, List<String> changedDocumentIds);
+	}
+
+	private final DocumentDatabase database;
+	private final Target target;
+	private final Map<String, Watch> watches = new HashMap<String, Watch>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+
+			}, "ChangeDetector");
+		}
+
+	});
+
+	public ChangeDetector(DocumentDatabase database, Target target) {
+		this.database = database;
+		this.target = target;
+	}
+
+	/**
+	 * Watches this directory or extends the time it is watched. This should be called whenever a client lists it.
+	 */
+	public void watch(String documentId) {
+		if (DocumentId.parse(documentId).isRoot()) {
+			// The shares of a server have no attributes that could be polled
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		synchronized (this) {
+			Watch watch = watches.get(documentId);
+			if (watch != null) {
+				watch.lastWatched = now;
+				return;
+			}
+
+			if (watches.size() >= MAX_WATCHES) {
+				dropOldestWatch();
+			}
+			if (BuildConfig.DEBUG) Log.d(TAG, "Watching " + documentId);
+			watch = new Watch(documentId, now);
+			watches.put(documentId, watch);
+			schedule(watch);
+		}
+	}
+
+	/**
+	 * Watches all pinned directories. This should be called after they have been changed.
+	 */
+	public void watchPinned() {
+		for (String documentId : database.getPinnedDirectories()) {
+			watch(documentId);
+		}
+	}
+
+	/**
+	 * Drops the watch of the directory that was listed longest ago. Directories in pinned trees are never dropped, so there may be more watches
+	 * than {@link #MAX_WATCHES} if many of them are pinned.
+	 */
+	private void dropOldestWatch() {
+		List<String> pinnedDirectories = database.getPinnedDirectories();
+		Watch oldest = null;
+		for (Watch watch : watches.values()) {
+			if ((oldest == null || watch.lastWatched < oldest.lastWatched) && !isInPinnedTree(watch.documentId, pinnedDirectories)) {
+				oldest = watch;
+			}
+		}
+		if (oldest != null) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Too many watches, not watching " + oldest.documentId + " anymore");
+			watches.remove(oldest.documentId);
+		}
+	}
+
+	/**
+	 * @return true, if the directory with this documentId is one of the pinned directories or below one of them
+	 */
+	private static boolean isInPinnedTree(String documentId, List<String> pinnedDirectories) {
+		for (String pinnedDirectory : pinnedDirectories) {
+			// The documentIds of directories end with '/', so this does not match directories that just share the prefix
+			if (documentId.startsWith(pinnedDirectory)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void schedule(final Watch watch) {
+		executor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (ChangeDetector.this) {
+					if (watches.get(watch.documentId) != watch) {
+						return;
+					}
+					if (SystemClock.elapsedRealtime() - watch.lastWatched > WATCH_DURATION && !isPinnedDirectory(watch.documentId)) {
+						if (BuildConfig.DEBUG) Log.d(TAG, "Not watching " + watch.documentId + " anymore");
+						watches.remove(watch.documentId);
+						return;
+					}
+				}
+
+				try {
+					poll(watch);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Error occurred while polling " + watch.documentId, e);
+					watch.interval = Math.min(watch.interval * 2, MAX_INTERVAL);
+				}
+				schedule(watch);
+			}
+
+		}, watch.interval, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean isPinnedDirectory(String documentId) {
+		return database.getPinnedDirectories().contains(documentId);
+	}
+
+	private void poll(Watch watch) {
+		DocumentId id = DocumentId.parse(watch.documentId);
+		long lastModified = target.getDirectoryLastModified(id);
+		if (lastModified < 0) {
+			// The server is not reachable, so don't try as often
+			watch.interval = Math.min(watch.interval * 2, MAX_INTERVAL);
+			return;
+		}
+		if (watch.lastModified < 0 || lastModified == watch.lastModified) {
+			watch.lastModified = lastModified;
+			watch.interval = Math.min(watch.interval * 3 / 2, MAX_INTERVAL);
+			return;
+		}
+
+		if (BuildConfig.DEBUG) Log.d(TAG, watch.documentId + " has been modified, listing it again");
+		Map<String, long[]> stored = getStoredAttributes(watch.documentId);
+		Document[] documents = target.listDirectory(id);
+		if (documents == null) {
+			watch.interval = Math.min(watch.interval * 2, MAX_INTERVAL);
+			return;
+		}
+		watch.lastModified = lastModified;
+
+		List<String> changed = new ArrayList<String>();
+		for (Document document : documents) {
+			String documentId = document.documentId.toString();
+			long[] attributes = stored.remove(documentId);
+			if (attributes == null || attributes[0] != document.lastModified || attributes[1] != document.size) {
+				changed.add(documentId);
+			}
+		}
+		// What is left has been deleted
+		changed.addAll(stored.keySet());
+
+		if (changed.isEmpty()) {
+			watch.interval = Math.min(watch.interval * 3 / 2, MAX_INTERVAL);
+			return;
+		}
+		if (BuildConfig.DEBUG) Log.d(TAG, changed.size() + " documents in " + watch.documentId + " have changed");
+		watch.interval = Math.max(watch.interval / 2, MIN_INTERVAL);
+		target.onDirectoryChanged(watch.documentId, changed);
+	}
+
+	/**
+	 * @return the lastModified and size of the documents in the stored list of this directory by their documentIds
+	 */
+	private Map<String, long[]> getStoredAttributes(String documentId) {
+		Map<String, long[]> attributes = new HashMap<String, long[]>();
+		Cursor cursor = database.queryDirectoryListAttributes(documentId);
+		try {
+			while (cursor.moveToNext()) {
+				attributes.put(cursor.getString(0), new long[] { cursor.getLong(1), cursor.getLong(2) });
+			}
+		} finally {
+			cursor.close();
+		}
+		return attributes;
+	}
+
+	/**
+	 * A watched directory. Its attributes are only changed on the thread of the executor.
+	 */
+	private static class Watch {
+
+		final String documentId;
+		volatile long lastWatched;
+		long interval = INITIAL_INTERVAL;
+
+		/**
+		 * The lastModified of the directory at the last poll or -1, if it has not been polled yet.
+		 */
+		long lastModified = -1;
+
+		Watch(String documentId, long lastWatched) {
+			this.documentId = documentId;
+			this.lastWatched = lastWatched;
+		}
+	}
+
+}
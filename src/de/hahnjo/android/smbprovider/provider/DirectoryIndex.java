@@ -0,0 +1,217 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * An in-memory index of the recently listed directories. Each directory maps the names of its documents to the {@link Document}s, so looking up a
+ * document does not need a scan or a database query. The directories are evicted in LRU order when their estimated size exceeds the budget.
+ * <p>
+ * The indexed directories are published as immutable snapshots that are replaced atomically, so lookups from many threads never block. Changes
+ * copy the snapshot, which is cheap because it only references the directories.
+ */
+public class DirectoryIndex {
+
+	private static final String TAG = DirectoryIndex.class.getSimpleName();
+
+	/**
+	 * The estimated size (in bytes) of a {@link Document} with its {@link DocumentId} and its entry in the index, not counting its name.
+	 */
+	private static final int DOCUMENT_OVERHEAD = 160;
+
+	private static final Comparator<Map.Entry<DocumentId, Directory>> LEAST_RECENTLY_USED = new Comparator<Map.Entry<DocumentId, Directory>>() {
+
+		@Override
+		public int compare(Map.Entry<DocumentId, Directory> lhs, Map.Entry<DocumentId, Directory> rhs) {
+			long left = lhs.getValue().lastUsed;
+			long right = rhs.getValue().lastUsed;
+			return left < right ? -1 : (left == right ? 0 : 1);
+		}
+
+	};
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(new HashMap<DocumentId, Directory>(), 0));
+	private volatile long maxSize;
+
+	/**
+	 * Creates a new index that keeps directories with an estimated size of up to maxSize bytes.
+	 */
+	public DirectoryIndex(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Replaces the indexed documents of this directory.
+	 */
+	public void put(DocumentId directoryId, Document[] documents) {
+		// Build the directory outside of the loop, so a retry does not have to do it again
+		Directory directory = new Directory(documents);
+
+		Snapshot current;
+		Snapshot next;
+		do {
+			current = snapshot.get();
+			Map<DocumentId, Directory> directories = new HashMap<DocumentId, Directory>(current.directories);
+			long size = current.size + directory.size;
+			Directory previous = directories.put(directoryId, directory);
+			if (previous != null) {
+				size -= previous.size;
+			}
+			next = trim(directories, size, maxSize);
+		} while (!snapshot.compareAndSet(current, next));
+	}
+
+	/**
+	 * @return the indexed document with this documentId or null, if its directory is not indexed or does not contain it
+	 */
+	public Document get(DocumentId documentId) {
+		DocumentId parent = documentId.getParent();
+		if (parent == null) {
+			return null;
+		}
+
+		Directory directory = snapshot.get().directories.get(parent);
+		if (directory == null) {
+			return null;
+		}
+		directory.lastUsed = System.nanoTime();
+		return directory.documents.get(documentId.getName());
+	}
+
+	/**
+	 * Replaces this document if its directory is indexed, so the index does not return outdated attributes.
+	 */
+	public void update(Document document) {
+		DocumentId parent = document.documentId.getParent();
+		if (parent == null) {
+			return;
+		}
+
+		Directory directory = snapshot.get().directories.get(parent);
+		if (directory != null) {
+			directory.documents.replace(document.name, document);
+		}
+	}
+
+	/**
+	 * Removes this document from the index after it has been deleted. If it is a directory, its own documents are removed as well.
+	 */
+	public void remove(DocumentId documentId) {
+		DocumentId parent = documentId.getParent();
+		if (parent != null) {
+			Directory directory = snapshot.get().directories.get(parent);
+			if (directory != null) {
+				directory.documents.remove(documentId.getName());
+			}
+		}
+
+		if (documentId.isDirectory()) {
+			Snapshot current;
+			Snapshot next;
+			do {
+				current = snapshot.get();
+				Directory directory = current.directories.get(documentId);
+				if (directory == null) {
+					return;
+				}
+				Map<DocumentId, Directory> directories = new HashMap<DocumentId, Directory>(current.directories);
+				directories.remove(documentId);
+				next = new Snapshot(directories, current.size - directory.size);
+			} while (!snapshot.compareAndSet(current, next));
+		}
+	}
+
+	/**
+	 * Evicts the least recently used directories until the estimated size of the index is at most maxSize bytes.
+	 */
+	public void trimToSize(long maxSize) {
+		Snapshot current;
+		Snapshot next;
+		do {
+			current = snapshot.get();
+			if (current.size <= maxSize) {
+				return;
+			}
+			next = trim(new HashMap<DocumentId, Directory>(current.directories), current.size, maxSize);
+		} while (!snapshot.compareAndSet(current, next));
+	}
+
+	/**
+	 * Changes the maximum estimated size (in bytes) of this index and evicts directories if it is exceeded.
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * @return the maximum estimated size (in bytes) of this index
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Removes the least recently used directories from this copy of a snapshot until its size is at most maxSize bytes.
+	 *
+	 * @return the new snapshot
+	 */
+	private static Snapshot trim(Map<DocumentId, Directory> directories, long size, long maxSize) {
+		if (size > maxSize) {
+			List<Map.Entry<DocumentId, Directory>> entries = new ArrayList<Map.Entry<DocumentId, Directory>>(directories.entrySet());
+			Collections.sort(entries, LEAST_RECENTLY_USED);
+			for (int i = 0; i < entries.size() && size > maxSize; i++) {
+				Map.Entry<DocumentId, Directory> entry = entries.get(i);
+				if (BuildConfig.DEBUG) Log.d(TAG, "Evicting " + entry.getKey() + " with " + entry.getValue().documents.size() + " documents");
+				size -= entry.getValue().size;
+				directories.remove(entry.getKey());
+			}
+		}
+		return new Snapshot(directories, size);
+	}
+
+	/**
+	 * The indexed directories at one point in time. It is never changed after it has been published.
+	 */
+	private static class Snapshot {
+
+		final Map<DocumentId, Directory> directories;
+		final long size;
+
+		Snapshot(Map<DocumentId, Directory> directories, long size) {
+			this.directories = directories;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * The indexed documents of one directory.
+	 */
+	private static class Directory {
+
+		final ConcurrentHashMap<String, Document> documents;
+		final long size;
+
+		volatile long lastUsed = System.nanoTime();
+
+		Directory(Document[] documents) {
+			this.documents = new ConcurrentHashMap<String, Document>(documents.length * 4 / 3 + 1);
+			long size = 0;
+			for (Document document : documents) {
+				this.documents.put(document.name, document);
+				size += DOCUMENT_OVERHEAD + 2 * document.name.length();
+			}
+			this.size = size;
+		}
+	}
+
+}
@@ -0,0 +1,231 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.os.Process;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * A bounded executor for fetching directory lists. Requests for a directory that is already queued or being fetched are coalesced, so one request
+ * to the server answers all clients that are waiting for this directory.
+ */
+public class DirectoryListExecutor {
+
+	private static final String TAG = DirectoryListExecutor.class.getSimpleName();
+
+	private static final int THREADS = 2;
+	private static final int QUEUE_LIMIT = 16;
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	/**
+	 * Queued requests that were not repeated for this time (in milliseconds) and whose loading cursors have all been closed are dropped because
+	 * nobody is waiting for them anymore.
+	 */
+	private static final long STALE_TIMEOUT = 30 * 1000;
+
+	/**
+	 * The interface that actually fetches the directory lists.
+	 */
+	public interface Fetcher {
+
+		/**
+		 * Fetches the list of files and directories under this documentId. This is called on a worker thread.
+		 */
+		void fetchDirectoryList(String documentId);
+
+		/**
+		 * Called instead of {@link #fetchDirectoryList(String)} if the request has been dropped, so that the clients that are still waiting for
+		 * this list stop loading.
+		 */
+		void onFetchDropped(String documentId);
+	}
+
+	private final Fetcher fetcher;
+	private final ConcurrentMap<String, Task> pending = new ConcurrentHashMap<String, Task>();
+
+	/**
+	 * The number of open loading cursors by the documentIds of their directories.
+	 */
+	private final Map<String, Integer> waiters = new HashMap<String, Integer>();
+	private final ThreadPoolExecutor executor;
+
+	public DirectoryListExecutor(Fetcher fetcher) {
+		this.fetcher = fetcher;
+
+		executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_LIMIT),
+			new FetcherThreadFactory(), new DiscardOldestTaskPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Requests the list of this documentId. If it is already queued or being fetched, the request is coalesced with the running one.
+	 *
+	 * @return true, if a new request was queued
+	 */
+	public boolean submit(String documentId) {
+		Task task = new Task(documentId);
+		Task existing = pending.putIfAbsent(documentId, task);
+		if (existing != null) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Coalescing the request for " + documentId);
+			existing.lastRequested = System.currentTimeMillis();
+			return false;
+		}
+
+		executor.execute(task);
+		return true;
+	}
+
+	/**
+	 * Wraps a cursor that shows the list of this documentId as still loading. Its client does not query again, but waits for the notification, so
+	 * the request for this list is not dropped as stale until the cursor has been closed.
+	 */
+	public Cursor trackWaiter(String documentId, Cursor cursor) {
+		synchronized (waiters) {
+			Integer count = waiters.get(documentId);
+			waiters.put(documentId, count == null ? 1 : count + 1);
+		}
+		return new WaitingCursor(cursor, documentId);
+	}
+
+	private void onWaiterClosed(String documentId) {
+		synchronized (waiters) {
+			Integer count = waiters.get(documentId);
+			if (count == null || count <= 1) {
+				waiters.remove(documentId);
+			} else {
+				waiters.put(documentId, count - 1);
+			}
+		}
+	}
+
+	private boolean hasWaiters(String documentId) {
+		synchronized (waiters) {
+			return waiters.containsKey(documentId);
+		}
+	}
+
+	private class Task implements Runnable {
+
+		final String documentId;
+		volatile long lastRequested = System.currentTimeMillis();
+
+		Task(String documentId) {
+			this.documentId = documentId;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (System.currentTimeMillis() - lastRequested > STALE_TIMEOUT && !hasWaiters(documentId)) {
+					if (BuildConfig.DEBUG) Log.d(TAG, "Dropping the stale request for " + documentId);
+					fetcher.onFetchDropped(documentId);
+					return;
+				}
+
+				fetcher.fetchDirectoryList(documentId);
+			} finally {
+				pending.remove(documentId, this);
+			}
+		}
+	}
+
+	/**
+	 * A cursor of a client that waits for a directory list.
+	 */
+	private class WaitingCursor extends CrossProcessCursorWrapper {
+
+		private final String documentId;
+		private boolean closed = false;
+
+		WaitingCursor(Cursor cursor, String documentId) {
+			super(cursor);
+			this.documentId = documentId;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			onWaiterClosed(documentId);
+		}
+	}
+
+	/**
+	 * Drops a queued request if the queue is full. The oldest request that nobody waits for is dropped first.
+	 */
+	private class DiscardOldestTaskPolicy implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				return;
+			}
+
+			// The workers are all busy if the queue is full, so they will take the new request from the queue
+			Task dropped = removeDroppableTask(executor);
+			if (dropped != null) {
+				drop(dropped);
+			}
+			if (!executor.getQueue().offer(runnable)) {
+				drop((Task) runnable);
+			}
+		}
+
+		/**
+		 * @return the task that has been removed from the queue or null, if the queue is empty
+		 */
+		private Task removeDroppableTask(ThreadPoolExecutor executor) {
+			Iterator<Runnable> iterator = executor.getQueue().iterator();
+			while (iterator.hasNext()) {
+				Task task = (Task) iterator.next();
+				if (!hasWaiters(task.documentId) && executor.getQueue().remove(task)) {
+					return task;
+				}
+			}
+			return (Task) executor.getQueue().poll();
+		}
+
+		private void drop(Task task) {
+			Log.w(TAG, "Queue is full, dropping the request for " + task.documentId);
+			pending.remove(task.documentId, task);
+			fetcher.onFetchDropped(task.documentId);
+		}
+	}
+
+	private static class FetcherThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+
+			}, "DirectoryListFetcher #" + count.incrementAndGet());
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.SMBConnection;
+import de.hahnjo.android.smbprovider.backend.RemoteEntry;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A class that lists directories in a single pass. The {@link Document}s are created from the attributes that the server returns with the directory
+ * enumeration, so listing a directory does not need a request per entry. Entries whose attributes are missing in the enumeration are queried
+ * afterwards with a bounded number of concurrent requests. Huge directories can be delivered in pages while the enumeration is still running.
+ */
+public class DirectoryLister {
+
+	private static final String TAG = DirectoryLister.class.getSimpleName();
+
+	private static final int ATTRIBUTE_QUERY_PARALLELISM = 4;
+
+	/**
+	 * The first page is delivered after as many entries as the server returns with one enumeration request. Every following page is twice as large,
+	 * but at most MAX_PAGE_SIZE entries larger than the previous one.
+	 */
+	private static final int MAX_PAGE_SIZE = 5000;
+
+	private static final ExecutorService attributeQueryExecutor = Executors.newFixedThreadPool(ATTRIBUTE_QUERY_PARALLELISM);
+
+	/**
+	 * The interface that receives the pages of a listing that is still running.
+	 */
+	public interface PageListener {
+
+		/**
+		 * Called with all {@link Document}s that have been enumerated so far. This is called on the listing thread, so it should return quickly.
+		 */
+		void onPage(Document[] documents);
+	}
+
+	/**
+	 * Statistics about one listing.
+	 */
+	public static class Stats {
+
+		public final int entries;
+		public final int enumerations;
+		public final int attributeQueries;
+		public final long duration;
+
+		Stats(int entries, int enumerations, int attributeQueries, long duration) {
+			this.entries = entries;
+			this.enumerations = enumerations;
+			this.attributeQueries = attributeQueries;
+			this.duration = duration;
+		}
+
+		/**
+		 * @return the number of calls to the server that were made for this listing. A large enumeration may be split into several responses by the
+		 * server.
+		 */
+		public int getRequests() {
+			return enumerations + attributeQueries;
+		}
+
+		@Override
+		public String toString() {
+			return entries + " entries with " + getRequests() + " requests (" + enumerations + " enumerations, " + attributeQueries +
+				" attribute queries) in " + duration + " ms";
+		}
+	}
+
+	private final SMBConnection connection;
+	private final DocumentId documentId;
+	private final String path;
+
+	private PageListener pageListener;
+	private Stats stats;
+
+	/**
+	 * Creates a new lister for the directory with this documentId.
+	 */
+	public DirectoryLister(SMBConnection connection, DocumentId documentId) {
+		this.connection = connection;
+		this.documentId = documentId;
+		this.path = documentId.getPath();
+	}
+
+	/**
+	 * Sets the listener that receives the pages of the listing while it is running. The documents of the pages may still lack attributes that are
+	 * queried after the enumeration.
+	 */
+	public void setPageListener(PageListener pageListener) {
+		this.pageListener = pageListener;
+	}
+
+	/**
+	 * @return the statistics of the last call to {@link #list()}
+	 */
+	public Stats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the {@link Document}s in this directory
+	 */
+	public Document[] list() throws IOException {
+		long start = SystemClock.elapsedRealtime();
+
+		final List<Document> documents = new ArrayList<Document>();
+		final List<Integer> incomplete = new ArrayList<Integer>();
+		final int[] nextPage = new int[] { connection.getBackend().getEntriesPerListRequest() };
+
+		RemoteFile directory = connection.openPath(path);
+		directory.list(null, new RemoteFile.EntryListener() {
+
+			@Override
+			public void onEntry(RemoteEntry entry) {
+				if (!entry.complete) {
+					incomplete.add(documents.size());
+				}
+
+				documents.add(new Document(documentId, entry.name, entry.directory, entry.lastModified, entry.size));
+
+				if (pageListener != null && documents.size() >= nextPage[0]) {
+					pageListener.onPage(documents.toArray(new Document[documents.size()]));
+					nextPage[0] += Math.min(nextPage[0], MAX_PAGE_SIZE);
+				}
+			}
+
+		});
+
+		int attributeQueries = queryAttributes(documents, incomplete);
+
+		stats = new Stats(documents.size(), 1, attributeQueries, SystemClock.elapsedRealtime() - start);
+		return documents.toArray(new Document[documents.size()]);
+	}
+
+	/**
+	 * Queries the attributes of the documents at these indices and replaces them in the list.
+	 *
+	 * @return the number of requests that were sent
+	 */
+	private int queryAttributes(List<Document> documents, List<Integer> indices) {
+		if (indices.isEmpty()) {
+			return 0;
+		}
+
+		final AtomicInteger requests = new AtomicInteger();
+		List<Future<Document>> futures = new ArrayList<Future<Document>>(indices.size());
+		for (int index : indices) {
+			final Document document = documents.get(index);
+			futures.add(attributeQueryExecutor.submit(new Callable<Document>() {
+
+				@Override
+				public Document call() throws Exception {
+					requests.incrementAndGet();
+					RemoteFile file = connection.openPath(document.documentId.getPath());
+					return new Document(file, document.documentId);
+				}
+
+			}));
+		}
+
+		for (int i = 0; i < indices.size(); i++) {
+			try {
+				documents.set(indices.get(i), futures.get(i).get());
+			} catch (ExecutionException e) {
+				Log.w(TAG, "Error occurred while querying the attributes of " + documents.get(indices.get(i)).name, e.getCause());
+			} catch (InterruptedException e) {
+				Log.w(TAG, e);
+				break;
+			}
+		}
+		return requests.get();
+	}
+
+}
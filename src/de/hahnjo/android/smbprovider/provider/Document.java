@@ -1,10 +1,11 @@
 package de.hahnjo.android.smbprovider.provider;
 
+import java.io.IOException;
+
 import android.content.ContentValues;
 import android.provider.DocumentsContract;
-import android.webkit.MimeTypeMap;
-import jcifs.smb.SmbException;
-import jcifs.smb.SmbFile;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+import de.hahnjo.android.smbprovider.provider.thumbnail.ThumbnailLoader;
 
 /**
  * A class that contains information about one single document. This may either be a directory or a file.
@@ -12,56 +13,53 @@ import jcifs.smb.SmbFile;
 public class Document {
 
 	public final String name;
-	public final String documentId;
+	public final DocumentId documentId;
 	public final int flags;
 	public final long lastModified;
 	public final String mimeType;
 	public final long size;
 
 	/**
-	 * Creates a new document that holds information about this {@link SmbFile}. If appendName is true, its name will be appended to the documentId.
+	 * Creates a new document with this documentId that holds information about this {@link RemoteFile}. Every attribute is only read once, so
+	 * this does at most one request for each attribute that is not cached by the {@link RemoteFile}.
 	 */
-	public Document(SmbFile file, String documentId, boolean appendName) throws SmbException {
-		String name = file.getName();
+	public Document(RemoteFile file, DocumentId documentId) throws IOException {
+		this(documentId, file.isDirectory(), file.lastModified(), file.length());
+	}
 
-		if (appendName) {
-			this.documentId = documentId + name;
-		} else {
-			this.documentId = documentId;
-		}
+	/**
+	 * Creates a new document in this parent directory with the given attributes, for example from the response of a directory enumeration. The
+	 * name of a directory may have a trailing slash.
+	 */
+	public Document(DocumentId parent, String name, boolean directory, long lastModified, long size) {
+		this(parent.getChild(directory && name.endsWith("/") ? name.substring(0, name.length() - 1) : name, directory), directory, lastModified,
+			size);
+	}
 
-		// Do this after the documentId, so the documentId has the trailing slash
-		if (file.isDirectory()) {
-			// Remove trailing slash
-			name = name.substring(0, name.length() - 1);
-		}
-		this.name = name;
+	private Document(DocumentId documentId, boolean directory, long lastModified, long size) {
+		this.documentId = documentId;
+		// The name is shared with the documentId
+		this.name = documentId.getName();
 
-		flags = 0;
-		lastModified = file.lastModified();
+		this.lastModified = lastModified;
 
-		if (file.isDirectory()) {
+		if (directory) {
 			mimeType = DocumentsContract.Document.MIME_TYPE_DIR;
 		} else {
-			mimeType = getMimeType();
+			mimeType = MimeTypeResolver.getInstance().getMimeType(documentId.getAccountName(), name);
 		}
+		int flags = directory ? DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE : DocumentsContract.Document.FLAG_SUPPORTS_WRITE;
+		if (ThumbnailLoader.isSupported(mimeType)) {
+			flags |= DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL;
+		}
+		// The documents directly below a root are the shares, which cannot be deleted
+		DocumentId parent = documentId.getParent();
+		if (parent != null && !parent.isRoot()) {
+			flags |= DocumentsContract.Document.FLAG_SUPPORTS_DELETE;
+		}
+		this.flags = flags;
 
-		size = file.length();
-	}
-
-	/**
-	 * Creates a new document that holds information about this {@link SmbFile}. Its name will be appended to its parentDocumentId.
-	 */
-	public Document(SmbFile file, String parentDocumentId) throws SmbException {
-		this(file, parentDocumentId, true);
-	}
-
-	/**
-	 * @return the MIME-Type for this document (determined by its extension)
-	 */
-	private String getMimeType() {
-		String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
-		return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+		this.size = size;
 	}
 
 	/**
@@ -71,11 +69,12 @@ public class Document {
 		ContentValues values = new ContentValues();
 
 		values.put(DocumentDatabase.Columns.DISPLAY_NAME, name);
-		values.put(DocumentDatabase.Columns.DOCUMENT_ID, documentId);
+		values.put(DocumentDatabase.Columns.DOCUMENT_ID, documentId.toString());
 		values.put(DocumentDatabase.Columns.FLAGS, flags);
 		values.put(DocumentDatabase.Columns.LAST_MODIFIED, lastModified);
 		values.put(DocumentDatabase.Columns.MIME_TYPE, mimeType);
 		values.put(DocumentDatabase.Columns.SIZE, size);
+		values.put(DocumentDatabase.Columns.PARENT_DOCUMENT_ID, documentId.getParentDocumentId());
 
 		return values;
 	}
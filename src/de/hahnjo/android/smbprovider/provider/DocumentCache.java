@@ -0,0 +1,441 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * A class that manages the downloaded documents in the cache directory. The cache is bounded by a size in bytes: the least recently opened
+ * documents are evicted when it is exceeded. Every cached file has a row in {@link DocumentDatabase#CACHE_TABLE_NAME} and both are always deleted
+ * together. The row also stores the version of the remote file, so that cached files can be validated without downloading them again.
+ */
+public class DocumentCache {
+
+	private static final String TAG = DocumentCache.class.getSimpleName();
+
+	private static final String DIRECTORY_NAME = "documents";
+	private static final String PARTIAL_SUFFIX = ".part";
+
+	/**
+	 * Files without a row that were modified within this time (in milliseconds) may still be downloading and are not deleted.
+	 */
+	private static final long ORPHAN_MIN_AGE = 10 * 60 * 1000;
+
+	/**
+	 * Interrupted downloads that have not been resumed for this time (in milliseconds) are deleted.
+	 */
+	private static final long CHECKPOINT_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+	/**
+	 * A writer that waits for an upload checks this often (in milliseconds) whether it has been cancelled.
+	 */
+	private static final long UPLOAD_WAIT_INTERVAL = 500;
+
+	private final File directory;
+	private final DocumentDatabase database;
+	private final long maxSize;
+	private final long freshness;
+
+	private final ExecutorService trimExecutor = Executors.newSingleThreadExecutor();
+	private final AtomicBoolean trimPending = new AtomicBoolean();
+
+	/**
+	 * The number of clients that have the cached file of each document open for writing. Access is guarded by this map, which is also notified
+	 * when an upload is done.
+	 */
+	private final Map<String, Integer> writers = new HashMap<String, Integer>();
+	private final Set<String> uploading = new HashSet<String>();
+
+	/**
+	 * Creates a new cache that holds at most maxSize bytes. Cached files are not validated again for the time given by freshness (in milliseconds).
+	 */
+	public DocumentCache(Context context, DocumentDatabase database, long maxSize, long freshness) {
+		this.directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+		this.database = database;
+		this.maxSize = maxSize;
+		this.freshness = freshness;
+	}
+
+	/**
+	 * @return the file in the cache for this documentId. It may not exist.
+	 */
+	public File getFile(String documentId) {
+		return new File(directory, documentId);
+	}
+
+	/**
+	 * @return the file that a download of this documentId is written to before it is moved to {@link #getFile(String)}
+	 */
+	public File getPartialFile(String documentId) {
+		return new File(directory, documentId + PARTIAL_SUFFIX);
+	}
+
+	/**
+	 * @return true, if this document is cached. Also drops the row if its file has been deleted. A file without a row is not deleted here, because
+	 * it may just be written or committed. Such files are removed by {@link #trimAsync(boolean)} once they are old enough.
+	 */
+	public boolean contains(String documentId) {
+		boolean hasRow = getSize(documentId) >= 0;
+		if (!hasRow) {
+			return false;
+		}
+
+		if (!getFile(documentId).exists()) {
+			// Android deleted the file because the storage ran low
+			if (BuildConfig.DEBUG) Log.d(TAG, "The cached file of " + documentId + " has been deleted");
+			deleteRow(documentId);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers that this document has been opened.
+	 */
+	public void onAccessed(String documentId) {
+		ContentValues values = new ContentValues();
+		values.put(DocumentDatabase.CacheColumns.LAST_ACCESSED, System.currentTimeMillis());
+		database.getWritableDatabase().update(DocumentDatabase.CACHE_TABLE_NAME, values, DocumentDatabase.CacheColumns.DOCUMENT_ID + "=?",
+			new String[] { documentId });
+	}
+
+	/**
+	 * @return true, if the cached file of this document has not been validated within the freshness window
+	 */
+	public boolean needsValidation(String documentId) {
+		Cursor cursor = database.getReadableDatabase().query(DocumentDatabase.CACHE_TABLE_NAME,
+			new String[] { DocumentDatabase.CacheColumns.VALIDATED }, DocumentDatabase.CacheColumns.DOCUMENT_ID + "=?", new String[] { documentId },
+			null, null, null);
+		try {
+			return !cursor.moveToFirst() || System.currentTimeMillis() - cursor.getLong(0) > freshness;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Compares the cached file of this document with the attributes of the remote file and remembers the time of this validation if they match.
+	 *
+	 * @return true, if the cached file is still current
+	 */
+	public boolean validate(String documentId, long lastModified, long size) {
+		Cursor cursor = database.getReadableDatabase().query(DocumentDatabase.CACHE_TABLE_NAME,
+			new String[] { DocumentDatabase.CacheColumns.LAST_MODIFIED, DocumentDatabase.CacheColumns.SIZE },
+			DocumentDatabase.CacheColumns.DOCUMENT_ID + "=?", new String[] { documentId }, null, null, null);
+		try {
+			if (!cursor.moveToFirst() || cursor.getLong(0) != lastModified || cursor.getLong(1) != size) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "The cached file of " + documentId + " is outdated");
+				return false;
+			}
+		} finally {
+			cursor.close();
+		}
+
+		ContentValues values = new ContentValues();
+		values.put(DocumentDatabase.CacheColumns.VALIDATED, System.currentTimeMillis());
+		database.getWritableDatabase().update(DocumentDatabase.CACHE_TABLE_NAME, values, DocumentDatabase.CacheColumns.DOCUMENT_ID + "=?",
+			new String[] { documentId });
+		return true;
+	}
+
+	/**
+	 * Moves the partial file of this document to its final place after it has been downloaded completely.
+	 *
+	 * @return true, if the file could be moved
+	 */
+	public boolean commitPartialFile(String documentId) {
+		File file = getFile(documentId);
+		return getPartialFile(documentId).renameTo(file);
+	}
+
+	/**
+	 * Adds the row for this document after its file has been written and trims the cache in the background if necessary.
+	 *
+	 * @param lastModified the time when the remote file was last modified before it was downloaded
+	 */
+	public void onStored(String documentId, long lastModified) {
+		long now = System.currentTimeMillis();
+
+		ContentValues values = new ContentValues();
+		values.put(DocumentDatabase.CacheColumns.DOCUMENT_ID, documentId);
+		values.put(DocumentDatabase.CacheColumns.SIZE, getFile(documentId).length());
+		values.put(DocumentDatabase.CacheColumns.LAST_ACCESSED, now);
+		values.put(DocumentDatabase.CacheColumns.LAST_MODIFIED, lastModified);
+		values.put(DocumentDatabase.CacheColumns.VALIDATED, now);
+		database.getWritableDatabase().insertWithOnConflict(DocumentDatabase.CACHE_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+		trimAsync(false);
+	}
+
+	/**
+	 * Deletes the file and the row of this document.
+	 */
+	public void remove(String documentId) {
+		getFile(documentId).delete();
+		deleteRow(documentId);
+	}
+
+	/**
+	 * Registers a client that opens the cached file of this document for writing. The file is not evicted until {@link #endWrite(String)} is
+	 * called. If the file is being uploaded, this waits for the upload first, so that the client does not change it while it is read.
+	 *
+	 * @param signal a signal that cancels the waiting or null
+	 */
+	public void beginWrite(String documentId, CancellationSignal signal) throws InterruptedIOException {
+		synchronized (writers) {
+			while (uploading.contains(documentId)) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "Waiting for the upload of " + documentId + " before writing it");
+				if (signal != null) {
+					signal.throwIfCanceled();
+				}
+				try {
+					writers.wait(UPLOAD_WAIT_INTERVAL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the upload of " + documentId);
+				}
+			}
+
+			Integer count = writers.get(documentId);
+			writers.put(documentId, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * Unregisters a client that has closed the cached file of this document after writing it.
+	 */
+	public void endWrite(String documentId) {
+		synchronized (writers) {
+			Integer count = writers.get(documentId);
+			if (count == null || count <= 1) {
+				writers.remove(documentId);
+			} else {
+				writers.put(documentId, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Registers an upload that reads the cached file of this document. The file is not evicted until {@link #endUpload(String)} is called.
+	 *
+	 * @return false, if a client has the file open for writing. It must not be uploaded then, because it may be incomplete.
+	 */
+	public boolean beginUpload(String documentId) {
+		synchronized (writers) {
+			if (writers.containsKey(documentId)) {
+				return false;
+			}
+			uploading.add(documentId);
+			return true;
+		}
+	}
+
+	/**
+	 * Unregisters the upload of this document and wakes up the clients that wait for it to write the file.
+	 */
+	public void endUpload(String documentId) {
+		synchronized (writers) {
+			uploading.remove(documentId);
+			writers.notifyAll();
+		}
+	}
+
+	/**
+	 * Deletes the files, the partial files and the rows of every document below the directory with this documentId.
+	 */
+	public void removeBelow(String directoryId) {
+		delete(getFile(directoryId));
+
+		// Like for a root, all documentIds below the directory are between "directory/" and "directory0"
+		String[] selectionArgs = DocumentDatabase.getRootSelectionArgs(directoryId);
+		SQLiteDatabase db = database.getWritableDatabase();
+		db.delete(DocumentDatabase.CACHE_TABLE_NAME, DocumentDatabase.CacheColumns.DOCUMENT_ID + ">? AND " +
+			DocumentDatabase.CacheColumns.DOCUMENT_ID + "<?", selectionArgs);
+		db.delete(DocumentDatabase.DOWNLOADS_TABLE_NAME, DocumentDatabase.DownloadsColumns.DOCUMENT_ID + ">? AND " +
+			DocumentDatabase.DownloadsColumns.DOCUMENT_ID + "<?", selectionArgs);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Trims the cache on a background thread. Multiple requests are coalesced.
+	 *
+	 * @param removeOrphans if files without a row and rows without a file shall also be removed
+	 */
+	public void trimAsync(final boolean removeOrphans) {
+		if (!removeOrphans && !trimPending.compareAndSet(false, true)) {
+			return;
+		}
+
+		trimExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (!removeOrphans) {
+					trimPending.set(false);
+				}
+
+				if (removeOrphans) {
+					removeOrphans();
+				}
+				trim();
+			}
+
+		});
+	}
+
+	/**
+	 * Evicts the least recently opened documents until the cache is not larger than its maximum size. Documents with queued uploads, documents
+	 * below pinned directories and documents that are being written or uploaded are kept.
+	 */
+	public void trim() {
+		long size = getTotalSize();
+		if (size <= maxSize) {
+			return;
+		}
+		if (BuildConfig.DEBUG) Log.d(TAG, "Trimming the cache from " + size + " bytes to " + maxSize + " bytes");
+
+		// Changed files that have not been uploaded yet and files below pinned directories must not be evicted
+		String cachedDocumentId = DocumentDatabase.CACHE_TABLE_NAME + "." + DocumentDatabase.CacheColumns.DOCUMENT_ID;
+		String pinnedDocumentId = DocumentDatabase.PINNED_TABLE_NAME + "." + DocumentDatabase.PinnedColumns.DOCUMENT_ID;
+		Cursor cursor = database.getReadableDatabase().query(DocumentDatabase.CACHE_TABLE_NAME,
+			new String[] { DocumentDatabase.CacheColumns.DOCUMENT_ID, DocumentDatabase.CacheColumns.SIZE }, cachedDocumentId + " NOT IN (SELECT " +
+				DocumentDatabase.UploadsColumns.DOCUMENT_ID + " FROM " + DocumentDatabase.UPLOADS_TABLE_NAME + ") AND NOT EXISTS (SELECT 1 FROM " +
+				DocumentDatabase.PINNED_TABLE_NAME + " WHERE substr(" + cachedDocumentId + ", 1, length(" + pinnedDocumentId + "))=" + pinnedDocumentId + ")",
+			null, null, null, DocumentDatabase.CacheColumns.LAST_ACCESSED + " ASC");
+		try {
+			while (size > maxSize && cursor.moveToNext()) {
+				String documentId = cursor.getString(0);
+				synchronized (writers) {
+					if (writers.containsKey(documentId) || uploading.contains(documentId)) {
+						continue;
+					}
+					if (BuildConfig.DEBUG) Log.d(TAG, "Evicting " + documentId);
+					remove(documentId);
+				}
+				size -= cursor.getLong(1);
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return the size of all cached files as stored in the database
+	 */
+	private long getTotalSize() {
+		Cursor cursor = database.getReadableDatabase().rawQuery("SELECT SUM(" + DocumentDatabase.CacheColumns.SIZE + ") FROM " +
+			DocumentDatabase.CACHE_TABLE_NAME, null);
+		try {
+			if (cursor.moveToFirst()) {
+				return cursor.getLong(0);
+			}
+			return 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return the size of the cached file as stored in the database or -1, if there is no row for this document
+	 */
+	private long getSize(String documentId) {
+		Cursor cursor = database.getReadableDatabase().query(DocumentDatabase.CACHE_TABLE_NAME, new String[] { DocumentDatabase.CacheColumns.SIZE },
+			DocumentDatabase.CacheColumns.DOCUMENT_ID + "=?", new String[] { documentId }, null, null, null);
+		try {
+			if (cursor.moveToFirst()) {
+				return cursor.getLong(0);
+			}
+			return -1;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void deleteRow(String documentId) {
+		database.getWritableDatabase().delete(DocumentDatabase.CACHE_TABLE_NAME, DocumentDatabase.CacheColumns.DOCUMENT_ID + "=?",
+			new String[] { documentId });
+	}
+
+	/**
+	 * Removes rows whose files have been deleted and files that have no row. Partial files of interrupted downloads are kept as long as they have a
+	 * checkpoint that is not too old.
+	 */
+	void removeOrphans() {
+		Set<String> documentIds = new HashSet<String>();
+
+		long checkpointLimit = System.currentTimeMillis() - CHECKPOINT_MAX_AGE;
+		Cursor checkpoints = database.getReadableDatabase().query(DocumentDatabase.DOWNLOADS_TABLE_NAME,
+			new String[] { DocumentDatabase.DownloadsColumns.DOCUMENT_ID, DocumentDatabase.DownloadsColumns.UPDATED }, null, null, null, null, null);
+		try {
+			while (checkpoints.moveToNext()) {
+				String documentId = checkpoints.getString(0);
+				if (checkpoints.getLong(1) < checkpointLimit) {
+					if (BuildConfig.DEBUG) Log.d(TAG, "Deleting the interrupted download of " + documentId);
+					database.deleteCheckpoint(documentId);
+				} else {
+					documentIds.add(documentId + PARTIAL_SUFFIX);
+				}
+			}
+		} finally {
+			checkpoints.close();
+		}
+
+		Cursor cursor = database.getReadableDatabase().query(DocumentDatabase.CACHE_TABLE_NAME,
+			new String[] { DocumentDatabase.CacheColumns.DOCUMENT_ID }, null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				String documentId = cursor.getString(0);
+				if (getFile(documentId).exists()) {
+					documentIds.add(documentId);
+				} else {
+					deleteRow(documentId);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		removeOrphanFiles(directory, "", documentIds, System.currentTimeMillis() - ORPHAN_MIN_AGE);
+	}
+
+	private void removeOrphanFiles(File directory, String prefix, Set<String> documentIds, long modifiedBefore) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			String documentId = prefix + file.getName();
+			if (file.isDirectory()) {
+				removeOrphanFiles(file, documentId + "/", documentIds, modifiedBefore);
+			} else if (!documentIds.contains(documentId) && file.lastModified() < modifiedBefore) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "Deleting the orphaned file " + documentId);
+				file.delete();
+			}
+		}
+	}
+
+}
@@ -1,11 +1,21 @@
 package de.hahnjo.android.smbprovider.provider;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.DocumentsContract;
 import android.util.Log;
 import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.provider.transfer.DownloadCheckpoint;
 
 /**
  * A class that manages the connection to the database.
@@ -15,12 +25,27 @@ public class DocumentDatabase extends SQLiteOpenHelper {
 	private static final String TAG = DocumentDatabase.class.getSimpleName();
 
 	private static final String DATABASE_NAME = "documents.db";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 9;
 
 	public static final String TABLE_NAME = "documents";
 	public class Columns {
 		public static final String ID = "_id";
 
+		/**
+		 * The documentId of the directory that contains this document.
+		 */
+		public static final String PARENT_DOCUMENT_ID = "parent_document_id";
+
+		/**
+		 * The number of times this document has been opened.
+		 */
+		public static final String ACCESS_COUNT = "access_count";
+
+		/**
+		 * The time when this document was last opened or null, if it has never been opened.
+		 */
+		public static final String LAST_OPENED = "last_opened";
+
 		/**
 		 * @see DocumentsContract.Document#COLUMN_DISPLAY_NAME
 		 */
@@ -52,8 +77,185 @@ public class DocumentDatabase extends SQLiteOpenHelper {
 		public static final String SIZE = DocumentsContract.Document.COLUMN_SIZE;
 	}
 
-	public DocumentDatabase(Context context) {
-		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	/**
+	 * The full-text index over the names in {@link #TABLE_NAME}. It does not store the names itself and is kept up to date by triggers.
+	 */
+	public static final String SEARCH_TABLE_NAME = "search";
+
+	/**
+	 * The table that contains the directories whose lists are stored in {@link #TABLE_NAME}.
+	 */
+	public static final String DIRECTORIES_TABLE_NAME = "directories";
+	public class DirectoriesColumns {
+		public static final String ID = "_id";
+
+		/**
+		 * The documentId of the directory.
+		 */
+		public static final String DOCUMENT_ID = "document_id";
+
+		/**
+		 * The time when the list of this directory was fetched from the server.
+		 */
+		public static final String LAST_REFRESHED = "last_refreshed";
+	}
+
+	/**
+	 * The table that contains the documents whose content is stored in the cache.
+	 */
+	public static final String CACHE_TABLE_NAME = "cache";
+	public class CacheColumns {
+		public static final String ID = "_id";
+
+		/**
+		 * The documentId of the cached document.
+		 */
+		public static final String DOCUMENT_ID = "document_id";
+
+		/**
+		 * The size of the cached file.
+		 */
+		public static final String SIZE = "size";
+
+		/**
+		 * The time when the cached file was last opened.
+		 */
+		public static final String LAST_ACCESSED = "last_accessed";
+
+		/**
+		 * The time when the remote file was last modified before it was downloaded.
+		 */
+		public static final String LAST_MODIFIED = "last_modified";
+
+		/**
+		 * The time when the cached file was last compared with the remote file.
+		 */
+		public static final String VALIDATED = "validated";
+	}
+
+	/**
+	 * The table that contains the checkpoints of interrupted downloads.
+	 */
+	public static final String DOWNLOADS_TABLE_NAME = "downloads";
+	public class DownloadsColumns {
+		public static final String ID = "_id";
+
+		/**
+		 * The documentId of the downloaded document.
+		 */
+		public static final String DOCUMENT_ID = "document_id";
+
+		/**
+		 * The time when the remote file was last modified when the download started.
+		 */
+		public static final String LAST_MODIFIED = "last_modified";
+
+		/**
+		 * The size of the remote file when the download started.
+		 */
+		public static final String SIZE = "size";
+
+		/**
+		 * The number of bytes that have been written.
+		 */
+		public static final String BYTES_DONE = "bytes_done";
+
+		/**
+		 * The size of the chunks of a parallel download or 0 for a sequential download.
+		 */
+		public static final String CHUNK_SIZE = "chunk_size";
+
+		/**
+		 * The bitmap of the completed chunks of a parallel download.
+		 */
+		public static final String CHUNKS = "chunks";
+
+		/**
+		 * The time when this checkpoint was written.
+		 */
+		public static final String UPDATED = "updated";
+	}
+
+	/**
+	 * The table that contains the documents whose changed cached files still have to be uploaded.
+	 */
+	public static final String UPLOADS_TABLE_NAME = "uploads";
+	public class UploadsColumns {
+		public static final String ID = "_id";
+
+		/**
+		 * The documentId of the changed document.
+		 */
+		public static final String DOCUMENT_ID = "document_id";
+
+		/**
+		 * The time when the document was last saved. It is replaced by every save, so repeated saves result in one upload.
+		 */
+		public static final String QUEUED = "queued";
+
+		/**
+		 * The number of failed attempts to upload the current version.
+		 */
+		public static final String ATTEMPTS = "attempts";
+	}
+
+	/**
+	 * The table that contains the directories that are kept offline. Everything below them is synced to the cache in the background.
+	 */
+	public static final String PINNED_TABLE_NAME = "pinned";
+	public class PinnedColumns {
+		public static final String ID = "_id";
+
+		/**
+		 * The documentId of the pinned directory.
+		 */
+		public static final String DOCUMENT_ID = "document_id";
+
+		/**
+		 * The time when the directory was last synced completely or null, if it has not been synced yet.
+		 */
+		public static final String LAST_SYNCED = "last_synced";
+	}
+
+	private static final String[] DEFAULT_PROJECTION = new String[] {
+		Columns.DISPLAY_NAME,
+		Columns.DOCUMENT_ID,
+		Columns.FLAGS,
+		Columns.LAST_MODIFIED,
+		Columns.MIME_TYPE,
+		Columns.SIZE
+	};
+
+	private static final Set<String> STORED_COLUMNS = new HashSet<String>();
+	static {
+		STORED_COLUMNS.add(Columns.ID);
+		STORED_COLUMNS.add(Columns.PARENT_DOCUMENT_ID);
+		for (String column : DEFAULT_PROJECTION) {
+			STORED_COLUMNS.add(column);
+		}
+	}
+
+	private static DocumentDatabase instance;
+
+	/**
+	 * @return the shared instance, so that the provider and the settings use the same connections to the database
+	 */
+	public static synchronized DocumentDatabase getInstance(Context context) {
+		if (instance == null) {
+			instance = new DocumentDatabase(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private DocumentDatabase(Context context) {
+		this(context, DATABASE_NAME);
+	}
+
+	/**
+	 * Creates a database that is not shared. If name is null, it is only kept in memory, which is what the tests use.
+	 */
+	DocumentDatabase(Context context, String name) {
+		super(context, name, null, DATABASE_VERSION);
 	}
 
 	@Override
@@ -61,13 +263,555 @@ public class DocumentDatabase extends SQLiteOpenHelper {
 		if (BuildConfig.DEBUG) Log.d(TAG, "onCreate");
 
 		db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + Columns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + Columns.DISPLAY_NAME + " VARCHAR, " +
-			Columns.DOCUMENT_ID + " VARCHAR, " + Columns.FLAGS + " INTEGER, " + Columns.LAST_MODIFIED + " INTEGER, " +
-			Columns.MIME_TYPE + " VARCHAR, " + Columns.SIZE + " INTEGER)");
+			Columns.DOCUMENT_ID + " VARCHAR UNIQUE, " + Columns.FLAGS + " INTEGER, " + Columns.LAST_MODIFIED + " INTEGER, " +
+			Columns.MIME_TYPE + " VARCHAR, " + Columns.SIZE + " INTEGER, " + Columns.PARENT_DOCUMENT_ID + " VARCHAR, " + Columns.ACCESS_COUNT +
+			" INTEGER DEFAULT 0, " + Columns.LAST_OPENED + " INTEGER)");
+		db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + Columns.PARENT_DOCUMENT_ID + " ON " + TABLE_NAME + " (" + Columns.PARENT_DOCUMENT_ID + ")");
+		db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + Columns.LAST_OPENED + " ON " + TABLE_NAME + " (" + Columns.LAST_OPENED + ", " +
+			Columns.ACCESS_COUNT + ")");
+
+		db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts4(content=\"" + TABLE_NAME + "\", " + Columns.DISPLAY_NAME + ")");
+		// Refreshing a directory updates all of its rows, so only touch the index if the name has changed
+		db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_before_update BEFORE UPDATE ON " + TABLE_NAME + " WHEN old." + Columns.DISPLAY_NAME +
+			" IS NOT new." + Columns.DISPLAY_NAME + " BEGIN DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid=old." + Columns.ID + "; END");
+		db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_after_update AFTER UPDATE ON " + TABLE_NAME + " WHEN old." + Columns.DISPLAY_NAME +
+			" IS NOT new." + Columns.DISPLAY_NAME + " BEGIN INSERT INTO " + SEARCH_TABLE_NAME + " (docid, " + Columns.DISPLAY_NAME + ") VALUES (new." +
+			Columns.ID + ", new." + Columns.DISPLAY_NAME + "); END");
+		db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_before_delete BEFORE DELETE ON " + TABLE_NAME + " BEGIN DELETE FROM " + SEARCH_TABLE_NAME +
+			" WHERE docid=old." + Columns.ID + "; END");
+		db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_after_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN INSERT INTO " + SEARCH_TABLE_NAME +
+			" (docid, " + Columns.DISPLAY_NAME + ") VALUES (new." + Columns.ID + ", new." + Columns.DISPLAY_NAME + "); END");
+
+		db.execSQL("CREATE TABLE " + DIRECTORIES_TABLE_NAME + " (" + DirectoriesColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			DirectoriesColumns.DOCUMENT_ID + " VARCHAR UNIQUE, " + DirectoriesColumns.LAST_REFRESHED + " INTEGER)");
+
+		db.execSQL("CREATE TABLE " + CACHE_TABLE_NAME + " (" + CacheColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			CacheColumns.DOCUMENT_ID + " VARCHAR UNIQUE, " + CacheColumns.SIZE + " INTEGER, " + CacheColumns.LAST_ACCESSED + " INTEGER, " +
+			CacheColumns.LAST_MODIFIED + " INTEGER, " + CacheColumns.VALIDATED + " INTEGER)");
+		db.execSQL("CREATE INDEX " + CACHE_TABLE_NAME + "_" + CacheColumns.LAST_ACCESSED + " ON " + CACHE_TABLE_NAME + " (" +
+			CacheColumns.LAST_ACCESSED + ")");
+
+		db.execSQL("CREATE TABLE " + DOWNLOADS_TABLE_NAME + " (" + DownloadsColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			DownloadsColumns.DOCUMENT_ID + " VARCHAR UNIQUE, " + DownloadsColumns.LAST_MODIFIED + " INTEGER, " + DownloadsColumns.SIZE + " INTEGER, " +
+			DownloadsColumns.BYTES_DONE + " INTEGER, " + DownloadsColumns.CHUNK_SIZE + " INTEGER, " + DownloadsColumns.CHUNKS + " BLOB, " +
+			DownloadsColumns.UPDATED + " INTEGER)");
+
+		createUploadsTable(db);
+		createPinnedTable(db);
 	}
 
+	private static void createUploadsTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + UPLOADS_TABLE_NAME + " (" + UploadsColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			UploadsColumns.DOCUMENT_ID + " VARCHAR UNIQUE, " + UploadsColumns.QUEUED + " INTEGER, " + UploadsColumns.ATTEMPTS + " INTEGER DEFAULT 0)");
+	}
+
+	private static void createPinnedTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + PINNED_TABLE_NAME + " (" + PinnedColumns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			PinnedColumns.DOCUMENT_ID + " VARCHAR UNIQUE, " + PinnedColumns.LAST_SYNCED + " INTEGER)");
+	}
+
+	/**
+	 * Migrates the database step by step. The uploads and the pinned directories are not on the server, so their tables must survive every
+	 * upgrade. Every further version adds a step that only creates or alters what it has changed.
+	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		if (BuildConfig.DEBUG) Log.d(TAG, "onUpgrade");
+		if (BuildConfig.DEBUG) Log.d(TAG, "onUpgrade: oldVersion=" + oldVersion + ", newVersion=" + newVersion);
+
+		if (oldVersion < 8) {
+			// Up to this version, the database only cached information from the server, so it can just be recreated
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + DIRECTORIES_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + CACHE_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + DOWNLOADS_TABLE_NAME);
+			onCreate(db);
+			return;
+		}
+
+		if (oldVersion < 9) {
+			createPinnedTable(db);
+		}
+	}
+
+	/**
+	 * @return the projection for a query of {@link #TABLE_NAME}. Columns that are not stored will be null.
+	 */
+	public static String[] getProjection(String[] projection) {
+		if (projection == null) {
+			projection = DEFAULT_PROJECTION;
+		}
+
+		String[] result = new String[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			if (STORED_COLUMNS.contains(projection[i])) {
+				result[i] = projection[i];
+			} else {
+				result[i] = "NULL AS " + projection[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Inserts this document or updates the row with its documentId.
+	 */
+	public void putDocument(Document document) {
+		putDocument(getWritableDatabase(), document);
+	}
+
+	private static void putDocument(SQLiteDatabase db, Document document) {
+		ContentValues values = document.toContentValues();
+		int updated = db.update(TABLE_NAME, values, Columns.DOCUMENT_ID + "=?", new String[] { document.documentId.toString() });
+		if (updated == 0) {
+			db.insert(TABLE_NAME, null, values);
+		}
+	}
+
+	/**
+	 * Replaces the stored list of the directory with this documentId and remembers when it was refreshed.
+	 */
+	public void putDirectoryList(String documentId, Document[] documents) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			Set<String> documentIds = new HashSet<String>();
+			for (Document document : documents) {
+				putDocument(db, document);
+				documentIds.add(document.documentId.toString());
+			}
+
+			// Remove the documents that have been deleted on the server
+			Cursor cursor = db.query(TABLE_NAME, new String[] { Columns.DOCUMENT_ID }, Columns.PARENT_DOCUMENT_ID + "=?", new String[] { documentId },
+				null, null, null);
+			try {
+				while (cursor.moveToNext()) {
+					String childDocumentId = cursor.getString(0);
+					if (!documentIds.contains(childDocumentId)) {
+						db.delete(TABLE_NAME, Columns.DOCUMENT_ID + "=?", new String[] { childDocumentId });
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+
+			ContentValues values = new ContentValues();
+			values.put(DirectoriesColumns.DOCUMENT_ID, documentId);
+			values.put(DirectoriesColumns.LAST_REFRESHED, System.currentTimeMillis());
+			db.insertWithOnConflict(DIRECTORIES_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Deletes the document with this documentId. If it is a directory, everything below it is deleted as well.
+	 */
+	public void deleteDocument(String documentId) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			String[] selectionArgs = new String[] { documentId };
+			db.delete(TABLE_NAME, Columns.DOCUMENT_ID + "=?", selectionArgs);
+			db.delete(DIRECTORIES_TABLE_NAME, DirectoriesColumns.DOCUMENT_ID + "=?", selectionArgs);
+			db.delete(UPLOADS_TABLE_NAME, UploadsColumns.DOCUMENT_ID + "=?", selectionArgs);
+			db.delete(PINNED_TABLE_NAME, PinnedColumns.DOCUMENT_ID + "=?", selectionArgs);
+
+			if (documentId.endsWith("/")) {
+				// Like for a root, all documentIds below the directory are between "directory/" and "directory0"
+				String[] belowSelectionArgs = getRootSelectionArgs(documentId);
+				db.delete(TABLE_NAME, Columns.DOCUMENT_ID + ">? AND " + Columns.DOCUMENT_ID + "<?", belowSelectionArgs);
+				db.delete(DIRECTORIES_TABLE_NAME, DirectoriesColumns.DOCUMENT_ID + ">? AND " + DirectoriesColumns.DOCUMENT_ID + "<?",
+					belowSelectionArgs);
+				db.delete(UPLOADS_TABLE_NAME, UploadsColumns.DOCUMENT_ID + ">? AND " + UploadsColumns.DOCUMENT_ID + "<?", belowSelectionArgs);
+				db.delete(PINNED_TABLE_NAME, PinnedColumns.DOCUMENT_ID + ">? AND " + PinnedColumns.DOCUMENT_ID + "<?", belowSelectionArgs);
+			}
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * @return the time when the list of the directory with this documentId was stored or -1, if it is not stored
+	 */
+	public long getDirectoryListRefreshed(String documentId) {
+		Cursor cursor = getReadableDatabase().query(DIRECTORIES_TABLE_NAME, new String[] { DirectoriesColumns.LAST_REFRESHED },
+			DirectoriesColumns.DOCUMENT_ID + "=?", new String[] { documentId }, null, null, null);
+		try {
+			if (cursor.moveToFirst()) {
+				return cursor.getLong(0);
+			}
+			return -1;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return a {@link Cursor} with the stored list of the directory with this documentId
+	 */
+	public Cursor queryDirectoryList(String documentId, String[] projection) {
+		return getReadableDatabase().query(TABLE_NAME, getProjection(projection), Columns.PARENT_DOCUMENT_ID + "=?", new String[] { documentId },
+			null, null, null);
+	}
+
+	/**
+	 * @return a {@link Cursor} with the documentId, lastModified and size of every document in the stored list of the directory with this
+	 * documentId
+	 */
+	public Cursor queryDirectoryListAttributes(String documentId) {
+		return getReadableDatabase().query(TABLE_NAME, new String[] { Columns.DOCUMENT_ID, Columns.LAST_MODIFIED, Columns.SIZE },
+			Columns.PARENT_DOCUMENT_ID + "=?", new String[] { documentId }, null, null, null);
+	}
+
+	/**
+	 * Records that the document with this documentId has been opened. The access statistics are kept when the document is updated.
+	 */
+	public void recordAccess(String documentId) {
+		getWritableDatabase().execSQL("UPDATE " + TABLE_NAME + " SET " + Columns.ACCESS_COUNT + "=" + Columns.ACCESS_COUNT + "+1, " +
+			Columns.LAST_OPENED + "=? WHERE " + Columns.DOCUMENT_ID + "=?", new Object[] { System.currentTimeMillis(), documentId });
+	}
+
+	/**
+	 * Records that the directory with this documentId has been visited. Only its access count is raised for the Prefetcher, so directories never
+	 * show up in the recent documents.
+	 */
+	public void recordDirectoryVisit(String documentId) {
+		getWritableDatabase().execSQL("UPDATE " + TABLE_NAME + " SET " + Columns.ACCESS_COUNT + "=" + Columns.ACCESS_COUNT + "+1 WHERE " +
+			Columns.DOCUMENT_ID + "=?", new Object[] { documentId });
+	}
+
+	/**
+	 * @return a {@link Cursor} with at most limit documents below the root with this documentId that have been opened, the most recent first
+	 */
+	public Cursor queryRecent(String rootDocumentId, String[] projection, int limit) {
+		return getReadableDatabase().query(TABLE_NAME, getProjection(projection), getRecentSelection(), getRootSelectionArgs(rootDocumentId), null,
+			null, Columns.LAST_OPENED + " DESC", Integer.toString(limit));
+	}
+
+	/**
+	 * @return the documentIds of at most limit documents below the root with this documentId that have been opened, the most recent first
+	 */
+	public List<String> getRecentDocumentIds(String rootDocumentId, int limit) {
+		Cursor cursor = getReadableDatabase().query(TABLE_NAME, new String[] { Columns.DOCUMENT_ID }, getRecentSelection(),
+			getRootSelectionArgs(rootDocumentId), null, null, Columns.LAST_OPENED + " DESC", Integer.toString(limit));
+		try {
+			List<String> documentIds = new ArrayList<String>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				documentIds.add(cursor.getString(0));
+			}
+			return documentIds;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static String getRecentSelection() {
+		// Directories never get a time of the last opening, but they may still have one from older versions of the database
+		return Columns.LAST_OPENED + " IS NOT NULL AND " + Columns.MIME_TYPE + " IS NOT '" + DocumentsContract.Document.MIME_TYPE_DIR + "' AND " +
+			Columns.DOCUMENT_ID + ">? AND " + Columns.DOCUMENT_ID + "<?";
+	}
+
+	/**
+	 * @return the arguments for a selection of all documentIds below the root with this documentId. They all begin with "account/" and the
+	 * character after '/' is '0'.
+	 */
+	static String[] getRootSelectionArgs(String rootDocumentId) {
+		return new String[] { rootDocumentId, rootDocumentId.substring(0, rootDocumentId.length() - 1) + '0' };
+	}
+
+	/**
+	 * @return the documentIds of the directories in the stored list of the directory with this documentId
+	 */
+	public List<String> getChildDirectories(String documentId) {
+		Cursor cursor = getReadableDatabase().query(TABLE_NAME, new String[] { Columns.DOCUMENT_ID }, Columns.PARENT_DOCUMENT_ID + "=? AND " +
+			Columns.MIME_TYPE + "=?", new String[] { documentId, DocumentsContract.Document.MIME_TYPE_DIR }, null, null, null);
+		try {
+			List<String> documentIds = new ArrayList<String>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				documentIds.add(cursor.getString(0));
+			}
+			return documentIds;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return the documentIds of at most limit directories in the stored list of the directory with this documentId that have been visited, the
+	 * most often visited first
+	 */
+	public List<String> getVisitedChildDirectories(String documentId, int limit) {
+		Cursor cursor = getReadableDatabase().query(TABLE_NAME, new String[] { Columns.DOCUMENT_ID }, Columns.PARENT_DOCUMENT_ID + "=? AND " +
+			Columns.MIME_TYPE + "=? AND " + Columns.ACCESS_COUNT + ">0", new String[] { documentId, DocumentsContract.Document.MIME_TYPE_DIR }, null,
+			null, Columns.ACCESS_COUNT + " DESC", Integer.toString(limit));
+		try {
+			List<String> documentIds = new ArrayList<String>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				documentIds.add(cursor.getString(0));
+			}
+			return documentIds;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return a {@link Cursor} with the documentId, the MIME-Type, the size and the time when it was last opened of every file in the stored list of
+	 * the directory with this documentId, ordered by their names like a file manager shows them
+	 */
+	public Cursor queryChildFilesByName(String documentId) {
+		return getReadableDatabase().query(TABLE_NAME, new String[] { Columns.DOCUMENT_ID, Columns.MIME_TYPE, Columns.SIZE, Columns.LAST_OPENED },
+			Columns.PARENT_DOCUMENT_ID + "=? AND " + Columns.MIME_TYPE + " IS NOT ?", new String[] { documentId,
+				DocumentsContract.Document.MIME_TYPE_DIR }, null, null, Columns.DISPLAY_NAME + " COLLATE NOCASE");
+	}
+
+	/**
+	 * Searches the stored documents below the root with this documentId whose names contain words that begin with the words of the query. The
+	 * documents with the given documentIds are always part of the result, if they are stored.
+	 *
+	 * @return a {@link Cursor} with at most limit documents
+	 */
+	public Cursor querySearch(String rootDocumentId, String query, Collection<String> documentIds, String[] projection, int limit) {
+		String match = getMatchExpression(query);
+		List<String> selectionArgs = new ArrayList<String>();
+
+		StringBuilder selection = new StringBuilder("(");
+		if (match != null) {
+			selection.append(Columns.ID).append(" IN (SELECT docid FROM ").append(SEARCH_TABLE_NAME).append(" WHERE ").append(SEARCH_TABLE_NAME)
+				.append(" MATCH ?)");
+			selectionArgs.add(match);
+		} else {
+			selection.append("0");
+		}
+		if (!documentIds.isEmpty()) {
+			selection.append(" OR ").append(Columns.DOCUMENT_ID).append(" IN (?");
+			for (int i = 1; i < documentIds.size(); i++) {
+				selection.append(",?");
+			}
+			selection.append(')');
+			selectionArgs.addAll(documentIds);
+		}
+
+		selection.append(") AND ").append(Columns.DOCUMENT_ID).append(">? AND ").append(Columns.DOCUMENT_ID).append("<?");
+		Collections.addAll(selectionArgs, getRootSelectionArgs(rootDocumentId));
+
+		return getReadableDatabase().query(TABLE_NAME, getProjection(projection), selection.toString(),
+			selectionArgs.toArray(new String[selectionArgs.size()]), null, null, null, Integer.toString(limit));
+	}
+
+	/**
+	 * @return an expression for the full-text index that matches all words of the query as prefixes or null, if the query has no words
+	 */
+	private static String getMatchExpression(String query) {
+		StringBuilder match = new StringBuilder();
+		for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+			if (word.length() > 0) {
+				if (match.length() > 0) {
+					match.append(' ');
+				}
+				match.append(word).append('*');
+			}
+		}
+		return match.length() > 0 ? match.toString() : null;
+	}
+
+	/**
+	 * @return the checkpoint of the interrupted download of this documentId or null, if there is none
+	 */
+	public DownloadCheckpoint getCheckpoint(String documentId) {
+		Cursor cursor = getReadableDatabase().query(DOWNLOADS_TABLE_NAME, new String[] { DownloadsColumns.LAST_MODIFIED, DownloadsColumns.SIZE,
+			DownloadsColumns.CHUNK_SIZE, DownloadsColumns.BYTES_DONE, DownloadsColumns.CHUNKS }, DownloadsColumns.DOCUMENT_ID + "=?",
+			new String[] { documentId }, null, null, null);
+		try {
+			if (cursor.moveToFirst()) {
+				return new DownloadCheckpoint(documentId, cursor.getLong(0), cursor.getLong(1), cursor.getInt(2), cursor.getLong(3),
+					cursor.isNull(4) ? null : cursor.getBlob(4));
+			}
+			return null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Stores this checkpoint or replaces the one with its documentId.
+	 */
+	public void putCheckpoint(DownloadCheckpoint checkpoint) {
+		ContentValues values = new ContentValues();
+		values.put(DownloadsColumns.DOCUMENT_ID, checkpoint.documentId);
+		values.put(DownloadsColumns.LAST_MODIFIED, checkpoint.lastModified);
+		values.put(DownloadsColumns.SIZE, checkpoint.size);
+		values.put(DownloadsColumns.BYTES_DONE, checkpoint.getBytesDone());
+		values.put(DownloadsColumns.CHUNK_SIZE, checkpoint.chunkSize);
+		values.put(DownloadsColumns.CHUNKS, checkpoint.getChunks());
+		values.put(DownloadsColumns.UPDATED, System.currentTimeMillis());
+		getWritableDatabase().insertWithOnConflict(DOWNLOADS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	/**
+	 * Deletes the checkpoint of this documentId.
+	 */
+	public void deleteCheckpoint(String documentId) {
+		getWritableDatabase().delete(DOWNLOADS_TABLE_NAME, DownloadsColumns.DOCUMENT_ID + "=?", new String[] { documentId });
+	}
+
+	/**
+	 * Queues the upload of this documentId or replaces the queued upload, so repeated saves are coalesced.
+	 */
+	public void putUpload(String documentId, long queued) {
+		ContentValues values = new ContentValues();
+		values.put(UploadsColumns.DOCUMENT_ID, documentId);
+		values.put(UploadsColumns.QUEUED, queued);
+		values.put(UploadsColumns.ATTEMPTS, 0);
+		getWritableDatabase().insertWithOnConflict(UPLOADS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	/**
+	 * @return the time when the queued upload of this documentId was last saved or -1, if there is none
+	 */
+	public long getUploadQueued(String documentId) {
+		Cursor cursor = getReadableDatabase().query(UPLOADS_TABLE_NAME, new String[] { UploadsColumns.QUEUED }, UploadsColumns.DOCUMENT_ID + "=?",
+			new String[] { documentId }, null, null, null);
+		try {
+			if (cursor.moveToFirst()) {
+				return cursor.getLong(0);
+			}
+			return -1;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return the documentIds of all queued uploads, the oldest first
+	 */
+	public List<String> getUploadDocumentIds() {
+		Cursor cursor = getReadableDatabase().query(UPLOADS_TABLE_NAME, new String[] { UploadsColumns.DOCUMENT_ID }, null, null, null, null,
+			UploadsColumns.QUEUED + " ASC");
+		try {
+			List<String> documentIds = new ArrayList<String>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				documentIds.add(cursor.getString(0));
+			}
+			return documentIds;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Records a failed attempt to upload this documentId.
+	 *
+	 * @return the number of failed attempts
+	 */
+	public int addUploadAttempt(String documentId) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.execSQL("UPDATE " + UPLOADS_TABLE_NAME + " SET " + UploadsColumns.ATTEMPTS + "=" + UploadsColumns.ATTEMPTS + "+1 WHERE " +
+			UploadsColumns.DOCUMENT_ID + "=?", new Object[] { documentId });
+
+		Cursor cursor = db.query(UPLOADS_TABLE_NAME, new String[] { UploadsColumns.ATTEMPTS }, UploadsColumns.DOCUMENT_ID + "=?",
+			new String[] { documentId }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Deletes the queued upload of this documentId unless the document has been saved again since the given time.
+	 *
+	 * @return true, if the upload was deleted
+	 */
+	public boolean deleteUpload(String documentId, long queued) {
+		return getWritableDatabase().delete(UPLOADS_TABLE_NAME, UploadsColumns.DOCUMENT_ID + "=? AND " + UploadsColumns.QUEUED + "=?",
+			new String[] { documentId, Long.toString(queued) }) > 0;
+	}
+
+	/**
+	 * @return the documentIds of all pinned directories
+	 */
+	public List<String> getPinnedDirectories() {
+		return getPinnedDirectories(null, null);
+	}
+
+	/**
+	 * @return the documentIds of the pinned directories below the root with this documentId
+	 */
+	public List<String> getPinnedDirectories(String rootDocumentId) {
+		return getPinnedDirectories(PinnedColumns.DOCUMENT_ID + ">? AND " + PinnedColumns.DOCUMENT_ID + "<?", getRootSelectionArgs(rootDocumentId));
+	}
+
+	private List<String> getPinnedDirectories(String selection, String[] selectionArgs) {
+		Cursor cursor = getReadableDatabase().query(PINNED_TABLE_NAME, new String[] { PinnedColumns.DOCUMENT_ID }, selection, selectionArgs, null,
+			null, PinnedColumns.DOCUMENT_ID);
+		try {
+			List<String> documentIds = new ArrayList<String>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				documentIds.add(cursor.getString(0));
+			}
+			return documentIds;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Replaces the pinned directories below the root with this documentId. Directories that stay pinned keep the time of their last sync.
+	 *
+	 * @return true, if a directory has been pinned or unpinned
+	 */
+	public boolean setPinnedDirectories(String rootDocumentId, Collection<String> documentIds) {
+		boolean changed = false;
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (String documentId : getPinnedDirectories(rootDocumentId)) {
+				if (!documentIds.contains(documentId)) {
+					db.delete(PINNED_TABLE_NAME, PinnedColumns.DOCUMENT_ID + "=?", new String[] { documentId });
+					changed = true;
+				}
+			}
+			for (String documentId : documentIds) {
+				ContentValues values = new ContentValues();
+				values.put(PinnedColumns.DOCUMENT_ID, documentId);
+				if (db.insertWithOnConflict(PINNED_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+					changed = true;
+				}
+			}
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return changed;
+	}
+
+	/**
+	 * @return true, if the document with this documentId is below a pinned directory
+	 */
+	public boolean isPinned(String documentId) {
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT 1 FROM " + PINNED_TABLE_NAME + " WHERE substr(?, 1, length(" +
+			PinnedColumns.DOCUMENT_ID + "))=" + PinnedColumns.DOCUMENT_ID + " LIMIT 1", new String[] { documentId });
+		try {
+			return cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Remembers that the pinned directory with this documentId has been synced completely.
+	 */
+	public void setPinnedSynced(String documentId, long synced) {
+		ContentValues values = new ContentValues();
+		values.put(PinnedColumns.LAST_SYNCED, synced);
+		getWritableDatabase().update(PINNED_TABLE_NAME, values, PinnedColumns.DOCUMENT_ID + "=?", new String[] { documentId });
 	}
 
 }
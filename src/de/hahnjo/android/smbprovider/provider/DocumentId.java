@@ -0,0 +1,247 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable documentId that is parsed once into its account, the directory that contains it and its name. A documentId has the form
+ * "account/path/to/file" and ends with a slash if it points to a directory.
+ * <p>
+ * The directories are interned in a trie of {@link PathNode}s, so all documents of one directory share the same parent instead of holding their own
+ * copies of its path. As long as a directory is in use, there is exactly one node for it, so ids can be compared by the identity of their nodes.
+ */
+public final class DocumentId {
+
+	private static final ConcurrentHashMap<String, PathNode> roots = new ConcurrentHashMap<String, PathNode>();
+
+	/**
+	 * The directory that contains this document or null, if this is a root.
+	 */
+	private final PathNode parent;
+	private final String name;
+
+	/**
+	 * The node of this directory or null, if this is a file.
+	 */
+	private final PathNode node;
+
+	private DocumentId(PathNode node) {
+		this.parent = node.parent;
+		this.name = node.name;
+		this.node = node;
+	}
+
+	private DocumentId(PathNode parent, String name) {
+		this.parent = parent;
+		this.name = name;
+		this.node = null;
+	}
+
+	/**
+	 * @return the parsed documentId
+	 * @throws IllegalArgumentException if this is no valid documentId
+	 */
+	public static DocumentId parse(String documentId) {
+		int slash = documentId.indexOf('/');
+		if (slash <= 0) {
+			throw new IllegalArgumentException("Invalid documentId " + documentId);
+		}
+
+		PathNode node = getRoot(documentId.substring(0, slash));
+		boolean directory = documentId.endsWith("/");
+		int end = directory ? documentId.length() - 1 : documentId.length();
+		if (end == slash) {
+			return new DocumentId(node);
+		}
+
+		int start = slash + 1;
+		int next;
+		while ((next = documentId.indexOf('/', start)) >= 0 && next < end) {
+			node = node.getChild(documentId.substring(start, next));
+			start = next + 1;
+		}
+
+		String name = documentId.substring(start, end);
+		if (directory) {
+			return new DocumentId(node.getChild(name));
+		}
+		return new DocumentId(node, name);
+	}
+
+	private static PathNode getRoot(String accountName) {
+		PathNode root = roots.get(accountName);
+		if (root == null) {
+			root = new PathNode(null, accountName);
+			PathNode existing = roots.putIfAbsent(accountName, root);
+			if (existing != null) {
+				root = existing;
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * @return the documentId of the document with this name in this directory
+	 * @throws IllegalStateException if this is no directory
+	 */
+	public DocumentId getChild(String name, boolean directory) {
+		if (node == null) {
+			throw new IllegalStateException(this + " is no directory");
+		}
+
+		if (directory) {
+			return new DocumentId(node.getChild(name));
+		}
+		return new DocumentId(node, name);
+	}
+
+	/**
+	 * @return the name of the account
+	 */
+	public String getAccountName() {
+		return node != null ? node.accountName : parent.accountName;
+	}
+
+	/**
+	 * @return the name of this document without a trailing slash. For a root, this is the name of the account.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the path of this document on the server (with a leading slash)
+	 */
+	public String getPath() {
+		String accountName = getAccountName();
+		if (node != null) {
+			return node.documentId.substring(accountName.length());
+		}
+		return parent.documentId.substring(accountName.length()) + name;
+	}
+
+	/**
+	 * @return the directory that contains this document or null, if this is a root
+	 */
+	public DocumentId getParent() {
+		return parent == null ? null : new DocumentId(parent);
+	}
+
+	/**
+	 * @return the documentId of the directory that contains this document (with a trailing slash) or an empty string, if this is a root
+	 */
+	public String getParentDocumentId() {
+		return parent == null ? "" : parent.documentId;
+	}
+
+	/**
+	 * @return true, if this documentId points to a directory
+	 */
+	public boolean isDirectory() {
+		return node != null;
+	}
+
+	/**
+	 * @return true, if this documentId points to a root
+	 */
+	public boolean isRoot() {
+		return parent == null;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		} else if (!(o instanceof DocumentId)) {
+			return false;
+		}
+
+		DocumentId other = (DocumentId) o;
+		if (node != null || other.node != null) {
+			return node == other.node;
+		}
+		return parent == other.parent && name.equals(other.name);
+	}
+
+	@Override
+	public int hashCode() {
+		if (node != null) {
+			return System.identityHashCode(node);
+		}
+		return 31 * System.identityHashCode(parent) + name.hashCode();
+	}
+
+	/**
+	 * @return the documentId as a string
+	 */
+	@Override
+	public String toString() {
+		if (node != null) {
+			return node.documentId;
+		}
+		return parent.documentId + name;
+	}
+
+	/**
+	 * A directory in the trie. Its children are only weakly referenced, so directories that are not used anymore can be collected.
+	 */
+	private static final class PathNode {
+
+		/**
+		 * The number of children after which the references to collected children are removed.
+		 */
+		private static final int SWEEP_INTERVAL = 64;
+
+		final PathNode parent;
+		final String name;
+		final String accountName;
+		final String documentId;
+
+		private Map<String, WeakReference<PathNode>> children;
+
+		PathNode(PathNode parent, String name) {
+			this.parent = parent;
+			this.name = name;
+			if (parent == null) {
+				accountName = name;
+				documentId = name + '/';
+			} else {
+				accountName = parent.accountName;
+				documentId = parent.documentId + name + '/';
+			}
+		}
+
+		/**
+		 * @return the interned node of the child directory with this name
+		 */
+		synchronized PathNode getChild(String name) {
+			if (children == null) {
+				children = new HashMap<String, WeakReference<PathNode>>();
+			}
+
+			WeakReference<PathNode> reference = children.get(name);
+			PathNode child = reference == null ? null : reference.get();
+			if (child == null) {
+				child = new PathNode(this, name);
+				children.put(name, new WeakReference<PathNode>(child));
+				if (children.size() % SWEEP_INTERVAL == 0) {
+					sweep();
+				}
+			}
+			return child;
+		}
+
+		private void sweep() {
+			Iterator<WeakReference<PathNode>> iterator = children.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().get() == null) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+}
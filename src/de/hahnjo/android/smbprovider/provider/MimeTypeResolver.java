@@ -0,0 +1,283 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.account.SMBAccountAuthenticator;
+
+/**
+ * A class that determines the MIME-Types of documents by their extensions. It keeps a case-insensitive table of extensions, so that looking up a
+ * known extension does not allocate anything. Extensions that are not in the table are looked up in the {@link MimeTypeMap} once and then added
+ * to it. Every account may override the MIME-Types of some extensions with its {@link SMBAccountAuthenticator#ACCOUNT_MIME_TYPES}.
+ */
+public class MimeTypeResolver {
+
+	private static final String TAG = MimeTypeResolver.class.getSimpleName();
+
+	/**
+	 * The extensions that are put into the table right away.
+	 */
+	private static final String[] COMMON_EXTENSIONS = new String[] {
+		"3gp", "aac", "apk", "avi", "bmp", "csv", "doc", "docx", "epub", "flac", "gif", "gz", "htm", "html", "jpeg", "jpg", "json", "m4a", "m4v",
+		"mkv", "mov", "mp3", "mp4", "mpeg", "mpg", "odp", "ods", "odt", "ogg", "opus", "pdf", "png", "ppt", "pptx", "rar", "svg", "tar", "tif",
+		"tiff", "txt", "wav", "webm", "webp", "wma", "wmv", "xls", "xlsx", "xml", "zip"
+	};
+
+	/**
+	 * The maximum number of extensions in the table. This protects against names with random "extensions" like version or serial numbers.
+	 */
+	private static final int MAX_EXTENSIONS = 1024;
+
+	private static MimeTypeResolver instance;
+
+	/**
+	 * @return the shared instance
+	 */
+	public static synchronized MimeTypeResolver getInstance() {
+		if (instance == null) {
+			instance = new MimeTypeResolver();
+		}
+		return instance;
+	}
+
+	/**
+	 * The tables are replaced as a whole, so lookups do not need any locking.
+	 */
+	private volatile ExtensionTable table;
+	private volatile AccountOverrides[] overrides = new AccountOverrides[0];
+
+	private MimeTypeResolver() {
+		ExtensionTable table = new ExtensionTable(COMMON_EXTENSIONS.length * 2);
+		MimeTypeMap map = MimeTypeMap.getSingleton();
+		for (String extension : COMMON_EXTENSIONS) {
+			table.put(extension, map.getMimeTypeFromExtension(extension));
+		}
+		this.table = table;
+	}
+
+	/**
+	 * Reads the overrides of all accounts from their user data.
+	 */
+	public void loadOverrides(Context context) {
+		Map<String, String> specs = new HashMap<String, String>();
+		for (Account account : SMBAccountAuthenticator.getAccounts(context)) {
+			String spec = SMBAccountAuthenticator.getAccountMimeTypes(context, account);
+			if (spec != null && spec.length() > 0) {
+				specs.put(account.name, spec);
+			}
+		}
+
+		AccountOverrides[] overrides = new AccountOverrides[specs.size()];
+		int i = 0;
+		for (Map.Entry<String, String> entry : specs.entrySet()) {
+			overrides[i++] = new AccountOverrides(entry.getKey(), parseOverrides(entry.getValue()));
+		}
+		this.overrides = overrides;
+	}
+
+	/**
+	 * Parses overrides like "nfo=text/plain, mkv=video/x-matroska".
+	 */
+	private static ExtensionTable parseOverrides(String spec) {
+		String[] entries = spec.split("[,;\\s]+");
+		ExtensionTable table = new ExtensionTable(entries.length);
+		for (String entry : entries) {
+			int separator = entry.indexOf('=');
+			if (separator <= 0 || separator == entry.length() - 1) {
+				if (entry.length() > 0) {
+					Log.w(TAG, "Ignoring the invalid MIME-Type override " + entry);
+				}
+				continue;
+			}
+
+			String extension = entry.substring(0, separator);
+			if (extension.startsWith(".")) {
+				extension = extension.substring(1);
+			}
+			table.put(extension, entry.substring(separator + 1));
+		}
+		return table;
+	}
+
+	/**
+	 * @return the MIME-Type of the file with this name in this account or null, if it is not known
+	 */
+	public String getMimeType(String accountName, String name) {
+		int start = getExtensionStart(name);
+		if (start < 0) {
+			return null;
+		}
+
+		AccountOverrides[] overrides = this.overrides;
+		for (AccountOverrides override : overrides) {
+			if (override.accountName.equalsIgnoreCase(accountName)) {
+				int index = override.table.indexOf(name, start);
+				if (index >= 0) {
+					return override.table.values[index];
+				}
+				break;
+			}
+		}
+
+		ExtensionTable table = this.table;
+		int index = table.indexOf(name, start);
+		if (index >= 0) {
+			return table.values[index];
+		}
+		return lookup(name.substring(start));
+	}
+
+	/**
+	 * @return the index of the first character of the extension in this name or -1, if it has none
+	 */
+	private static int getExtensionStart(String name) {
+		int dot = name.lastIndexOf('.');
+		// A leading dot marks a hidden file and not its extension
+		if (dot <= 0 || dot == name.length() - 1) {
+			return -1;
+		}
+		return dot + 1;
+	}
+
+	/**
+	 * Looks up an extension that is not in the table yet and adds it.
+	 */
+	private synchronized String lookup(String extension) {
+		// Another thread may have added it in the meantime
+		int index = table.indexOf(extension, 0);
+		if (index >= 0) {
+			return table.values[index];
+		}
+
+		String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(ExtensionTable.toLowerCase(extension));
+		if (table.size < MAX_EXTENSIONS) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Adding the extension " + extension + " with " + mimeType);
+			ExtensionTable copy = table.copy(table.size + 1);
+			copy.put(extension, mimeType);
+			table = copy;
+		}
+		return mimeType;
+	}
+
+	/**
+	 * The overrides of one account.
+	 */
+	private static class AccountOverrides {
+
+		final String accountName;
+		final ExtensionTable table;
+
+		AccountOverrides(String accountName, ExtensionTable table) {
+			this.accountName = accountName;
+			this.table = table;
+		}
+	}
+
+	/**
+	 * A hash table with open addressing that maps lower-case extensions to MIME-Types. Its keys can be looked up case-insensitively in a region of
+	 * another string, so no substring has to be created. A MIME-Type of null means that the extension is known to have none.
+	 */
+	private static class ExtensionTable {
+
+		final String[] keys;
+		final String[] values;
+		int size;
+
+		/**
+		 * Creates an empty table for the given number of extensions.
+		 */
+		ExtensionTable(int capacity) {
+			// Keep the load factor at most 0.5, so that the probe sequences stay short
+			int length = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) * 2;
+			keys = new String[length];
+			values = new String[length];
+		}
+
+		ExtensionTable copy(int capacity) {
+			ExtensionTable copy = new ExtensionTable(Math.max(capacity, size));
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != null) {
+					copy.put(keys[i], values[i]);
+				}
+			}
+			return copy;
+		}
+
+		void put(String extension, String mimeType) {
+			String key = toLowerCase(extension);
+			int mask = keys.length - 1;
+			int i = hash(key, 0) & mask;
+			while (keys[i] != null) {
+				if (keys[i].equals(key)) {
+					values[i] = mimeType;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = mimeType;
+			size++;
+		}
+
+		/**
+		 * @return the index of the key that equals the end of this string beginning at start (ignoring the case) or -1, if it was not found
+		 */
+		int indexOf(String string, int start) {
+			int mask = keys.length - 1;
+			int i = hash(string, start) & mask;
+			String key;
+			while ((key = keys[i]) != null) {
+				if (regionEquals(key, string, start)) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		private static boolean regionEquals(String key, String string, int start) {
+			int length = key.length();
+			if (string.length() - start != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (key.charAt(i) != toLowerCase(string.charAt(start + i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int hash(String string, int start) {
+			int hash = 0;
+			for (int i = start; i < string.length(); i++) {
+				hash = 31 * hash + toLowerCase(string.charAt(i));
+			}
+			// Spread the higher bits, because only the lower ones are used
+			return hash ^ (hash >>> 16);
+		}
+
+		static char toLowerCase(char c) {
+			if (c >= 'A' && c <= 'Z') {
+				return (char) (c + ('a' - 'A'));
+			} else if (c < 0x80) {
+				return c;
+			}
+			return Character.toLowerCase(c);
+		}
+
+		static String toLowerCase(String string) {
+			char[] chars = new char[string.length()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = toLowerCase(string.charAt(i));
+			}
+			return new String(chars);
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * A class that keeps the documents below the pinned directories in the {@link DocumentCache}, so they can be opened without the server. Every
+ * sync walks the pinned trees, stores the fetched lists and downloads only the files whose lastModified or size differ from their cached copies.
+ * <p>
+ * The directories are listed one after another on the calling thread, while the downloads run on a few background threads.
+ */
+public class OfflineSync {
+
+	private static final String TAG = OfflineSync.class.getSimpleName();
+
+	/**
+	 * The number of files that are downloaded at the same time.
+	 */
+	private static final int PARALLELISM = 3;
+
+	/**
+	 * The maximum number of directories that are listed below one pinned directory, in case it is much larger than expected.
+	 */
+	private static final int MAX_DIRECTORIES = 5000;
+
+	/**
+	 * The interface that actually lists and downloads the documents.
+	 */
+	public interface Target {
+
+		/**
+		 * Fetches and stores the list of this directory without notifying any client.
+		 *
+		 * @return the documents in this directory or null, if it could not be listed
+		 */
+		Document[] listDirectory(DocumentId documentId);
+
+		/**
+		 * @return true, if the cached copy of this document matches the lastModified and size of the listed document
+		 */
+		boolean isCached(Document document);
+
+		/**
+		 * Downloads this document to the {@link DocumentCache}. This is called on the download threads.
+		 *
+		 * @return true, if the document is cached now
+		 */
+		boolean downloadDocument(Document document);
+	}
+
+	private final DocumentDatabase database;
+	private final Target target;
+	private final ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+
+			}, "OfflineSync #" + count.incrementAndGet());
+		}
+
+	});
+
+	public OfflineSync(DocumentDatabase database, Target target) {
+		this.database = database;
+		this.target = target;
+	}
+
+	/**
+	 * Syncs all pinned directories and blocks until it is done. Concurrent calls wait for the running sync instead of walking the trees twice.
+	 */
+	public synchronized void sync() {
+		for (String documentId : database.getPinnedDirectories()) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Syncing " + documentId);
+			if (sync(DocumentId.parse(documentId))) {
+				database.setPinnedSynced(documentId, System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * @return true, if the complete tree below this directory is cached now
+	 */
+	private boolean sync(DocumentId directory) {
+		boolean complete = true;
+		List<Future<Boolean>> downloads = new ArrayList<Future<Boolean>>();
+		Queue<DocumentId> directories = new ArrayDeque<DocumentId>();
+		directories.add(directory);
+
+		int listed = 0;
+		while (!directories.isEmpty()) {
+			if (listed++ >= MAX_DIRECTORIES) {
+				Log.w(TAG, directory + " has more than " + MAX_DIRECTORIES + " directories, stopping");
+				complete = false;
+				break;
+			}
+
+			Document[] documents = target.listDirectory(directories.remove());
+			if (documents == null) {
+				complete = false;
+				continue;
+			}
+			for (final Document document : documents) {
+				if (document.documentId.isDirectory()) {
+					directories.add(document.documentId);
+				} else if (!target.isCached(document)) {
+					downloads.add(executor.submit(new Callable<Boolean>() {
+
+						@Override
+						public Boolean call() {
+							if (BuildConfig.DEBUG) Log.d(TAG, "Downloading " + document.documentId);
+							return target.downloadDocument(document);
+						}
+
+					}));
+				}
+			}
+		}
+
+		for (Future<Boolean> download : downloads) {
+			try {
+				complete &= download.get();
+			} catch (ExecutionException e) {
+				Log.w(TAG, "Error occurred while syncing " + directory, e.getCause());
+				complete = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		if (BuildConfig.DEBUG) Log.d(TAG, "Synced " + directory + ": " + listed + " directories, " + downloads.size() + " downloads");
+		return complete;
+	}
+
+	/**
+	 * @return the documentIds of the directories in the text, which contains one path like "share/directory" per line
+	 */
+	public static Collection<String> parsePaths(String accountName, String text) {
+		Collection<String> documentIds = new LinkedHashSet<String>();
+		if (text == null) {
+			return documentIds;
+		}
+		for (String line : text.split("\n")) {
+			String path = line.trim();
+			while (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			while (path.endsWith("/")) {
+				path = path.substring(0, path.length() - 1);
+			}
+			if (path.length() > 0) {
+				documentIds.add(accountName + "/" + path + "/");
+			}
+		}
+		return documentIds;
+	}
+
+	/**
+	 * @return the paths of these directories, one per line, in the format of {@link #parsePaths(String, String)}
+	 */
+	public static String formatPaths(String accountName, Collection<String> documentIds) {
+		StringBuilder text = new StringBuilder();
+		int prefix = accountName.length() + 1;
+		for (String documentId : documentIds) {
+			if (text.length() > 0) {
+				text.append('\n');
+			}
+			text.append(documentId, prefix, documentId.length() - 1);
+		}
+		return text.toString();
+	}
+
+}
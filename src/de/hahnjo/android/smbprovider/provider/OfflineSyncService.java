@@ -0,0 +1,57 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * An {@link IntentService} that syncs the pinned directories in the {@link SMBProvider} about once an hour and after they have been changed. The
+ * sync runs in the process of the provider, so this service only waits for it.
+ */
+public class OfflineSyncService extends IntentService {
+
+	private static final String TAG = OfflineSyncService.class.getSimpleName();
+
+	public OfflineSyncService() {
+		super(TAG);
+	}
+
+	/**
+	 * Schedules the periodic sync. The alarm is inexact, so the system may batch it with others.
+	 */
+	public static void schedule(Context context) {
+		AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent intent = PendingIntent.getService(context, 0, new Intent(context, OfflineSyncService.class), 0);
+		alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+			AlarmManager.INTERVAL_HOUR, intent);
+	}
+
+	/**
+	 * Starts a sync at once, for example after the pinned directories have been changed.
+	 */
+	public static void start(Context context) {
+		context.startService(new Intent(context, OfflineSyncService.class));
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+		if (network == null || !network.isConnected()) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "There is no network, skipping the sync");
+			return;
+		}
+
+		if (BuildConfig.DEBUG) Log.d(TAG, "Syncing the pinned directories");
+		getContentResolver().call(DocumentsContract.buildRootsUri(SMBProvider.AUTHORITY), SMBProvider.METHOD_SYNC_OFFLINE, null, null);
+	}
+
+}
@@ -0,0 +1,334 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * A class that fetches in the background what the user will most likely open next, based on the access history in the {@link DocumentDatabase}.
+ * After a directory has been listed, the lists of its subdirectories that were opened most often are fetched. When the images of a directory are
+ * opened one after another in the order of their names, the following small images are downloaded to the {@link DocumentCache}.
+ * <p>
+ * A single worker with the lowest priority does all the work. It only starts after no foreground request has arrived for a while, and every
+ * foreground request cancels a running download and drops the queued work. The downloaded bytes are limited per hour and their rate is limited as
+ * well.
+ */
+public class Prefetcher {
+
+	private static final String TAG = Prefetcher.class.getSimpleName();
+
+	/**
+	 * The worker waits until no foreground request has arrived for this time (in milliseconds).
+	 */
+	private static final long QUIET_PERIOD = 1000;
+
+	private static final int QUEUE_LIMIT = 16;
+
+	/**
+	 * The maximum number of subdirectories whose lists are fetched after a directory has been listed.
+	 */
+	private static final int MAX_DIRECTORIES = 3;
+
+	/**
+	 * Stored lists that are younger than this time (in milliseconds) are not fetched again.
+	 */
+	private static final long DIRECTORY_LIST_TTL = 5 * 60 * 1000;
+
+	/**
+	 * The maximum number of following files that are downloaded when the user pages through a directory.
+	 */
+	private static final int MAX_FILES = 5;
+
+	/**
+	 * Files that are larger than this size (in bytes) are not downloaded ahead of time.
+	 */
+	private static final long MAX_FILE_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The previous file must have been opened within this time (in milliseconds) to count as paging through the directory.
+	 */
+	private static final long SEQUENCE_WINDOW = 10 * 60 * 1000;
+
+	/**
+	 * At most MAX_BYTES are downloaded within BYTES_WINDOW (in milliseconds).
+	 */
+	private static final long MAX_BYTES = 64 * 1024 * 1024;
+	private static final long BYTES_WINDOW = 60 * 60 * 1000;
+
+	/**
+	 * The maximum average rate (in bytes per second) of the downloads.
+	 */
+	private static final long MAX_RATE = 1024 * 1024;
+
+	/**
+	 * The interface that actually fetches the lists and documents.
+	 */
+	public interface Target {
+
+		/**
+		 * Fetches and stores the list of this directory without notifying any client. This is called on the worker.
+		 */
+		void prefetchDirectoryList(String documentId);
+
+		/**
+		 * Downloads this document to the {@link DocumentCache}, unless it is cached already. This is called on the worker. A foreground download
+		 * of the same document may start before a cancelled prefetch has stopped, so it must wait for it instead of writing the same file.
+		 *
+		 * @return the number of downloaded bytes or -1, if the download failed or was cancelled
+		 */
+		long prefetchDocument(DocumentId documentId, CancellationSignal signal);
+	}
+
+	private final DocumentDatabase database;
+	private final Target target;
+
+	/**
+	 * The queued tasks by their documentIds, the oldest first.
+	 */
+	private final LinkedHashMap<String, Task> queue = new LinkedHashMap<String, Task>();
+	private Task running;
+	private CancellationSignal runningSignal;
+	private long lastForegroundRequest = 0;
+
+	/**
+	 * The time when the worker may start the next download, so the rate stays below {@link #MAX_RATE}.
+	 */
+	private long nextDownload = 0;
+	private long windowStart = 0;
+	private long windowBytes = 0;
+
+	public Prefetcher(DocumentDatabase database, Target target) {
+		this.database = database;
+		this.target = target;
+
+		new Worker().start();
+	}
+
+	/**
+	 * Cancels the running work and drops the queued work, because a client is waiting for the server. This does not wait for a cancelled download
+	 * to stop, the target has to coordinate it with a foreground download of the same document.
+	 */
+	public void onForegroundRequest() {
+		CancellationSignal signal;
+		synchronized (this) {
+			lastForegroundRequest = SystemClock.elapsedRealtime();
+			if (!queue.isEmpty()) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "Dropping " + queue.size() + " queued tasks");
+				queue.clear();
+			}
+			signal = runningSignal;
+		}
+
+		// The listeners of the signal run on this thread, so don't hold the lock while they do
+		if (signal != null) {
+			signal.cancel();
+		}
+	}
+
+	/**
+	 * Queues the lists of the subdirectories of this directory that will most likely be opened next. This should be called after a client has
+	 * been given the list of this directory.
+	 */
+	public void onDirectoryListed(String documentId) {
+		List<String> subdirectories = database.getVisitedChildDirectories(documentId, MAX_DIRECTORIES);
+		if (subdirectories.isEmpty()) {
+			// Without any history, only directories with a few subdirectories are worth it
+			List<String> children = database.getChildDirectories(documentId);
+			if (children.size() <= MAX_DIRECTORIES) {
+				subdirectories = children;
+			}
+		}
+
+		List<Task> tasks = new ArrayList<Task>();
+		for (String subdirectory : subdirectories) {
+			long refreshed = database.getDirectoryListRefreshed(subdirectory);
+			if (refreshed < 0 || System.currentTimeMillis() - refreshed > DIRECTORY_LIST_TTL) {
+				tasks.add(new Task(subdirectory, false));
+			}
+		}
+		enqueue(tasks);
+	}
+
+	/**
+	 * Queues the files that follow this document if the user is paging through the images of its directory. This should be called after the
+	 * access to this document has been recorded.
+	 */
+	public void onDocumentOpened(DocumentId documentId) {
+		String parentDocumentId = documentId.getParentDocumentId();
+		if (parentDocumentId.length() == 0) {
+			return;
+		}
+
+		String openedDocumentId = documentId.toString();
+		List<Task> tasks = new ArrayList<Task>();
+		Cursor cursor = database.queryChildFilesByName(parentDocumentId);
+		try {
+			// Find the document and check whether the image before it has been opened recently
+			boolean inSequence = false;
+			boolean found = false;
+			long previousOpened = -1;
+			while (cursor.moveToNext()) {
+				if (!isImage(cursor.getString(1))) {
+					continue;
+				}
+				if (cursor.getString(0).equals(openedDocumentId)) {
+					found = true;
+					inSequence = previousOpened >= 0 && System.currentTimeMillis() - previousOpened < SEQUENCE_WINDOW;
+					break;
+				}
+				previousOpened = cursor.isNull(3) ? -1 : cursor.getLong(3);
+			}
+			if (!found || !inSequence) {
+				return;
+			}
+
+			while (tasks.size() < MAX_FILES && cursor.moveToNext()) {
+				if (isImage(cursor.getString(1)) && cursor.getLong(2) <= MAX_FILE_SIZE) {
+					tasks.add(new Task(cursor.getString(0), true));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		if (BuildConfig.DEBUG && !tasks.isEmpty()) Log.d(TAG, "Paging through " + parentDocumentId + ", prefetching " + tasks.size() + " files");
+		enqueue(tasks);
+	}
+
+	private static boolean isImage(String mimeType) {
+		return mimeType != null && mimeType.startsWith("image/");
+	}
+
+	private synchronized void enqueue(List<Task> tasks) {
+		for (Task task : tasks) {
+			if (running != null && running.documentId.equals(task.documentId)) {
+				continue;
+			}
+			// Move tasks that are queued already to the end, so they keep their order
+			queue.remove(task.documentId);
+			queue.put(task.documentId, task);
+		}
+
+		while (queue.size() > QUEUE_LIMIT) {
+			queue.remove(queue.keySet().iterator().next());
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the next task once the worker may start it
+	 */
+	private synchronized Task take() throws InterruptedException {
+		while (true) {
+			long now = SystemClock.elapsedRealtime();
+			long wait = Math.max(lastForegroundRequest + QUIET_PERIOD - now, 0);
+			if (queue.isEmpty()) {
+				wait(0);
+				continue;
+			}
+
+			Task task = queue.values().iterator().next();
+			if (task.document) {
+				if (!hasBudget(now)) {
+					if (BuildConfig.DEBUG) Log.d(TAG, "Downloaded " + windowBytes + " bytes within the last hour, dropping " + task.documentId);
+					queue.remove(task.documentId);
+					continue;
+				}
+				wait = Math.max(wait, nextDownload - now);
+			}
+
+			if (wait > 0) {
+				wait(wait);
+				continue;
+			}
+
+			queue.remove(task.documentId);
+			running = task;
+			runningSignal = new CancellationSignal();
+			return task;
+		}
+	}
+
+	/**
+	 * @return true, if the worker may still download within the current window
+	 */
+	private boolean hasBudget(long now) {
+		if (now - windowStart > BYTES_WINDOW) {
+			windowStart = now;
+			windowBytes = 0;
+		}
+		return windowBytes < MAX_BYTES;
+	}
+
+	private synchronized void done(long started, long bytes) {
+		if (bytes > 0) {
+			windowBytes += bytes;
+			nextDownload = started + bytes * 1000 / MAX_RATE;
+		}
+		running = null;
+		runningSignal = null;
+		notifyAll();
+	}
+
+	private static class Task {
+
+		final String documentId;
+
+		/**
+		 * True, if the document is downloaded. Otherwise, it is a directory whose list is fetched.
+		 */
+		final boolean document;
+
+		Task(String documentId, boolean document) {
+			this.documentId = documentId;
+			this.document = document;
+		}
+	}
+
+	private class Worker extends Thread {
+
+		public Worker() {
+			super("Prefetcher");
+			setPriority(MIN_PRIORITY);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Task task;
+				CancellationSignal signal;
+				try {
+					synchronized (Prefetcher.this) {
+						task = take();
+						signal = runningSignal;
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				long started = SystemClock.elapsedRealtime();
+				long bytes = 0;
+				try {
+					if (task.document) {
+						if (BuildConfig.DEBUG) Log.d(TAG, "Prefetching the document " + task.documentId);
+						bytes = target.prefetchDocument(DocumentId.parse(task.documentId), signal);
+					} else {
+						if (BuildConfig.DEBUG) Log.d(TAG, "Prefetching the list of " + task.documentId);
+						target.prefetchDirectoryList(task.documentId);
+					}
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Error occurred while prefetching " + task.documentId, e);
+				} finally {
+					done(started, bytes);
+				}
+			}
+		}
+	}
+
+}
@@ -4,52 +4,275 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import android.accounts.Account;
+import android.accounts.OnAccountsUpdateListener;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsProvider;
 import android.util.Log;
+import android.webkit.MimeTypeMap;
 import de.hahnjo.android.smbprovider.BuildConfig;
 import de.hahnjo.android.smbprovider.SMBConnection;
+import de.hahnjo.android.smbprovider.SMBConnectionRegistry;
 import de.hahnjo.android.smbprovider.account.SMBAccountAuthenticator;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
 import de.hahnjo.android.smbprovider.provider.cursor.DocumentCursor;
 import de.hahnjo.android.smbprovider.provider.cursor.ExtraLoadingCursor;
+import de.hahnjo.android.smbprovider.provider.cursor.LoadingCursorWrapper;
 import de.hahnjo.android.smbprovider.provider.cursor.RootCursor;
 import de.hahnjo.android.smbprovider.provider.cursor.RootDocumentCursor;
-import jcifs.smb.SmbException;
-import jcifs.smb.SmbFile;
+import de.hahnjo.android.smbprovider.provider.thumbnail.ThumbnailCache;
+import de.hahnjo.android.smbprovider.provider.thumbnail.ThumbnailLoader;
+import de.hahnjo.android.smbprovider.provider.transfer.DocumentStreamer;
+import de.hahnjo.android.smbprovider.provider.transfer.DocumentUploader;
+import de.hahnjo.android.smbprovider.provider.transfer.DownloadCheckpoint;
+import de.hahnjo.android.smbprovider.provider.transfer.DownloadEngine;
+import de.hahnjo.android.smbprovider.provider.transfer.ParallelDownloader;
+import de.hahnjo.android.smbprovider.provider.transfer.RandomAccessProxy;
+import de.hahnjo.android.smbprovider.provider.transfer.TransferStats;
 
 /**
  * The {@link DocumentsProvider} that gives the Android system access to files on SMB shares.
  */
-public class SMBProvider extends DocumentsProvider {
+public class SMBProvider extends DocumentsProvider implements DirectoryListExecutor.Fetcher, DownloadCheckpoint.Listener, Prefetcher.Target,
+	UploadQueue.Uploader, OfflineSync.Target, ChangeDetector.Target {
 
 	private static final String TAG = SMBProvider.class.getSimpleName();
 
-	private static final String AUTHORITY = "de.hahnjo.android.smbprovider";
+	public static final String AUTHORITY = "de.hahnjo.android.smbprovider";
 
-	private Map<String, Cursor> cursorCache = new HashMap<String, Cursor>();
+	/**
+	 * The method for {@link #call(String, String, Bundle)} that syncs the pinned directories and returns when it is done.
+	 */
+	public static final String METHOD_SYNC_OFFLINE = "syncOffline";
+
+	/**
+	 * Fetched directory lists are kept for this time (in milliseconds) so that all clients that waited for them get the result.
+	 */
+	private static final long CURSOR_CACHE_TIMEOUT = 10 * 1000;
+
+	/**
+	 * Directory lists that are stored in the {@link DocumentDatabase} are refreshed in the background when they are older than this time (in
+	 * milliseconds).
+	 */
+	private static final long DIRECTORY_LIST_TTL = 5 * 60 * 1000;
+
+	/**
+	 * The maximum number of documents that are returned by a search.
+	 */
+	private static final int SEARCH_MAX_RESULTS = 200;
+
+	/**
+	 * A finished search is not repeated on the server for this time (in milliseconds) if the same query is searched again.
+	 */
+	private static final long SEARCH_TTL = 5 * 60 * 1000;
+
+	/**
+	 * The maximum number of documents that are returned as recent documents.
+	 */
+	private static final int RECENTS_MAX_RESULTS = 64;
+
+	/**
+	 * The cached copies of this number of the most recent documents are validated in the background when the recent documents are queried, so
+	 * that they can be opened without a network request.
+	 */
+	private static final int RECENTS_VALIDATE_COUNT = 8;
+
+	/**
+	 * The {@link DirectoryIndex} may use this fraction of the memory class of the device. Until the memory class is known, it uses the fraction
+	 * of the smallest memory class of 16 MB.
+	 */
+	private static final int DIRECTORY_INDEX_MEMORY_DIVISOR = 16;
+	private static final long DIRECTORY_INDEX_INITIAL_SIZE = 16 * 1024 * 1024 / DIRECTORY_INDEX_MEMORY_DIVISOR;
+
+	/**
+	 * Documents that have at least this size (in bytes) are streamed to the client instead of being downloaded first.
+	 */
+	private static final long STREAM_MIN_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * The maximum size (in bytes) of all downloaded documents in the {@link DocumentCache}.
+	 */
+	private static final long CACHE_MAX_SIZE = 256 * 1024 * 1024;
+
+	/**
+	 * Cached documents are not compared with the remote file again for this time (in milliseconds).
+	 */
+	private static final long CACHE_FRESHNESS = 60 * 1000;
+
+	/**
+	 * The maximum size (in bytes) of all generated thumbnails in the {@link ThumbnailCache}.
+	 */
+	private static final long THUMBNAIL_CACHE_MAX_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * The size (in bytes) of the buffers that are used for downloading documents.
+	 */
+	private static final int DOWNLOAD_BUFFER_SIZE = DownloadEngine.DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * Documents that have at least this size (in bytes) are downloaded in chunks over several connections at the same time.
+	 */
+	private static final long PARALLEL_DOWNLOAD_MIN_SIZE = 8 * 1024 * 1024;
+	private static final int PARALLEL_DOWNLOAD_CHUNK_SIZE = ParallelDownloader.DEFAULT_CHUNK_SIZE;
+	private static final int PARALLEL_DOWNLOAD_PARALLELISM = ParallelDownloader.DEFAULT_PARALLELISM;
+
+	/**
+	 * Changed documents are uploaded to a hidden file with this suffix next to them first, which then replaces the document. The file also has
+	 * the hidden attribute until it is in place.
+	 */
+	private static final String UPLOAD_SUFFIX = ".upload";
+
+	/**
+	 * A document that is replaced by an upload is moved to a hidden file with this suffix next to it until the upload is in its place. The file
+	 * also has the hidden attribute while it is there.
+	 */
+	private static final String BACKUP_SUFFIX = ".old";
+
+	/**
+	 * The maximum number that is appended to the name of a created document to make it unique.
+	 */
+	private static final int MAX_NAME_SUFFIX = 100;
+
+	private final ConcurrentHashMap<String, CachedDirectoryList> cursorCache = new ConcurrentHashMap<String, CachedDirectoryList>();
 	private DocumentDatabase database;
+	private DocumentCache documentCache;
+	private DownloadEngine downloadEngine;
+	private ParallelDownloader parallelDownloader;
+	private DirectoryListExecutor directoryListExecutor;
+	private ThumbnailLoader thumbnailLoader;
+	private Prefetcher prefetcher;
+	private UploadQueue uploadQueue;
+	private OfflineSync offlineSync;
+	private ChangeDetector changeDetector;
 
-	private String lastDirectoryDocumentId;
-	private Document[] lastDirectoryDocumentList;
+	private DirectoryIndex directoryIndex;
+	private final ExecutorService recentsValidator = Executors.newSingleThreadExecutor();
+	/**
+	 * Runs the work of {@link #onCreate()} and of account updates that needs the database or the AccountManager, because both are called on the
+	 * main thread.
+	 */
+	private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+	private final ConcurrentHashMap<String, SearchWalker> searchWalkers = new ConcurrentHashMap<String, SearchWalker>();
+
+	/**
+	 * The running downloads to the {@link DocumentCache} by their documentIds, so that only one of them writes the partial file of a document.
+	 */
+	private final ConcurrentHashMap<String, FutureTask<Boolean>> downloads = new ConcurrentHashMap<String, FutureTask<Boolean>>();
 
 	@Override
 	public boolean onCreate() {
 		if (BuildConfig.DEBUG) Log.d(TAG, "onCreate");
 
-		database = new DocumentDatabase(getContext());
+		database = DocumentDatabase.getInstance(getContext());
+		documentCache = new DocumentCache(getContext(), database, CACHE_MAX_SIZE, CACHE_FRESHNESS);
+		documentCache.trimAsync(true);
+		downloadEngine = new DownloadEngine(DOWNLOAD_BUFFER_SIZE);
+		parallelDownloader = new ParallelDownloader(PARALLEL_DOWNLOAD_CHUNK_SIZE, PARALLEL_DOWNLOAD_PARALLELISM);
+		directoryListExecutor = new DirectoryListExecutor(this);
+		thumbnailLoader = new ThumbnailLoader(getContext(), THUMBNAIL_CACHE_MAX_SIZE);
+		prefetcher = new Prefetcher(database, this);
+		uploadQueue = new UploadQueue(database, this);
+		offlineSync = new OfflineSync(database, this);
+		OfflineSyncService.schedule(getContext());
+		changeDetector = new ChangeDetector(database, this);
+		directoryIndex = new DirectoryIndex(DIRECTORY_INDEX_INITIAL_SIZE);
+		backgroundExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				directoryIndex.setMaxSize(getDirectoryIndexSize());
+				MimeTypeResolver.getInstance().loadOverrides(getContext());
+				uploadQueue.resume();
+				changeDetector.watchPinned();
+			}
+
+		});
+
+		// Drop the connections of accounts that were removed in the system settings
+		SMBAccountAuthenticator.getAccountManager(getContext()).addOnAccountsUpdatedListener(new OnAccountsUpdateListener() {
+
+			@Override
+			public void onAccountsUpdated(Account[] accounts) {
+				backgroundExecutor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						SMBConnectionRegistry.getInstance().retainAccounts(SMBAccountAuthenticator.getAccounts(getContext()));
+						MimeTypeResolver.getInstance().loadOverrides(getContext());
+					}
+
+				});
+			}
+
+		}, null, false);
 		return true;
 	}
 
+	/**
+	 * @return the budget (in bytes) of the {@link DirectoryIndex}, which depends on the memory class of the device
+	 */
+	private long getDirectoryIndexSize() {
+		ActivityManager activityManager = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+		return (long) activityManager.getMemoryClass() * 1024 * 1024 / DIRECTORY_INDEX_MEMORY_DIVISOR;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (BuildConfig.DEBUG) Log.d(TAG, "onTrimMemory: level=" + level);
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			// The process is likely to be killed soon, everything is in the database anyway
+			directoryIndex.trimToSize(0);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			directoryIndex.trimToSize(directoryIndex.getMaxSize() / 2);
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		directoryIndex.trimToSize(0);
+	}
+
+	@Override
+	public Bundle call(String method, String arg, Bundle extras) {
+		if (!METHOD_SYNC_OFFLINE.equals(method)) {
+			return super.call(method, arg, extras);
+		}
+		if (Binder.getCallingUid() != Process.myUid()) {
+			throw new SecurityException("Only this app may sync the pinned directories");
+		}
+
+		offlineSync.sync();
+		changeDetector.watchPinned();
+		return null;
+	}
+
 	@Override
 	public Cursor queryRoots(String[] projection) throws FileNotFoundException {
 		if (BuildConfig.DEBUG) Log.d(TAG, "queryRoots");
@@ -61,196 +284,933 @@ public class SMBProvider extends DocumentsProvider {
 	public Cursor queryDocument(String documentId, String[] projection) throws FileNotFoundException {
 		if (BuildConfig.DEBUG) Log.d(TAG, "queryDocument: documentId=" + documentId);
 
-		if (DocumentIdUtils.isRoot(documentId)) {
+		DocumentId id = DocumentId.parse(documentId);
+		if (id.isRoot()) {
 			if (BuildConfig.DEBUG) Log.d(TAG, "This is a root, so let's return a RootDocumentCursor");
 			return new RootDocumentCursor(projection, documentId);
-		} else if (DocumentIdUtils.isDirectory(documentId)) {
-			Log.w(TAG, "What does this app want to know about a DIRECTORY?!?");
-			return null;
 		}
-		if (BuildConfig.DEBUG) Log.d(TAG, "This seems to be a document...");
 
-		Cursor cursor = database.getReadableDatabase().query(DocumentDatabase.TABLE_NAME, projection,
+		Document document = directoryIndex.get(id);
+		if (document != null) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "The document " + id.getName() + " was in a directory that was listed recently");
+
+			return new DocumentCursor(projection, document);
+		}
+
+		Cursor cursor = database.getReadableDatabase().query(DocumentDatabase.TABLE_NAME, DocumentDatabase.getProjection(projection),
 			DocumentDatabase.Columns.DOCUMENT_ID + "=?", new String[] { documentId }, null, null, null);
 		if (cursor.getCount() == 1) {
-			if (BuildConfig.DEBUG) Log.d(TAG, "Information about the document " + DocumentIdUtils.getName(documentId) + " was in the database");
+			if (BuildConfig.DEBUG) Log.d(TAG, "Information about the document " + id.getName() + " was in the database");
 
 			return cursor;
 		}
+		cursor.close();
+
+		// For example a directory that was just created by a client that opens it right away
+		if (BuildConfig.DEBUG) Log.d(TAG, "The document " + documentId + " is neither in the index nor in the database, asking the server");
+		SMBConnection connection = getConnection(id.getAccountName());
+		if (connection == null) {
+			throw new FileNotFoundException("There is no account for " + documentId);
+		}
+		prefetcher.onForegroundRequest();
+		try {
+			RemoteFile remote = connection.openPath(id.getPath());
+			if (!remote.exists() || remote.isDirectory() != id.isDirectory()) {
+				throw new FileNotFoundException(documentId + " does not exist");
+			}
+			document = new Document(remote, id);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while querying the document", e);
+			throw new FileNotFoundException("Could not query " + documentId + ": " + e.getMessage());
+		}
+		database.putDocument(document);
+		return new DocumentCursor(projection, document);
+	}
 
-		if (lastDirectoryDocumentId != null && lastDirectoryDocumentList != null && documentId.startsWith(lastDirectoryDocumentId)) {
-			String name = DocumentIdUtils.getName(documentId);
+	@Override
+	public Cursor queryChildDocuments(String parentDocumentId, String[] projection, String sortOrder) throws FileNotFoundException {
+		if (BuildConfig.DEBUG) Log.d(TAG, "queryChildDocuments: parentDocumentId=" + parentDocumentId);
 
-			for (Document document : lastDirectoryDocumentList) {
-				if (name.equals(document.name)) {
-					if (BuildConfig.DEBUG) Log.d(TAG, "The document " + name + " was in the last directory that was queried");
+		Cursor cursor = getCachedDirectoryList(parentDocumentId, projection);
+		if (cursor == null) {
+			// This is most likely a client that opens the directory, and not one that queries it again after a notification
+			database.recordDirectoryVisit(parentDocumentId);
 
-					try {
-						return new DocumentCursor(projection, document);
-					} catch (SmbException e) {
-						Log.e(TAG, "Error occurred while retrieving information about a document", e);
-					}
+			long refreshed = database.getDirectoryListRefreshed(parentDocumentId);
+			if (refreshed >= 0) {
+				// Return the stored list at once and only refresh it in the background if it is too old
+				cursor = database.queryDirectoryList(parentDocumentId, projection);
+				if (System.currentTimeMillis() - refreshed > DIRECTORY_LIST_TTL) {
+					if (BuildConfig.DEBUG) Log.d(TAG, "The stored list is stale, refreshing it...");
+					prefetcher.onForegroundRequest();
+					directoryListExecutor.submit(parentDocumentId);
+				} else {
+					prefetcher.onDirectoryListed(parentDocumentId);
 				}
+			} else {
+				cursor = directoryListExecutor.trackWaiter(parentDocumentId, new ExtraLoadingCursor());
+				prefetcher.onForegroundRequest();
+				directoryListExecutor.submit(parentDocumentId);
 			}
+		}
+		cursor.setNotificationUri(getContext().getContentResolver(), DocumentsContract.buildDocumentUri(AUTHORITY, parentDocumentId));
+		changeDetector.watch(parentDocumentId);
+
+		return cursor;
+	}
 
-			Log.w(TAG, "File was not found in list although the documentId of the directory is the same");
+	/**
+	 * @return a cursor for the fetched list of this directory or null, if there is none or it has expired
+	 */
+	private Cursor getCachedDirectoryList(String parentDocumentId, String[] projection) {
+		CachedDirectoryList cached = cursorCache.get(parentDocumentId);
+		if (cached == null) {
+			return null;
 		}
 
-		return null;
+		if (cached.isExpired()) {
+			// Don't remove a list that has been fetched in the meantime
+			cursorCache.remove(parentDocumentId, cached);
+			return null;
+		}
+
+		DocumentCursor cursor = new DocumentCursor(projection, cached.documents);
+		if (cached.loading) {
+			// The client gets notified again when the next page of the list arrives
+			cursor.setLoading(true);
+			return directoryListExecutor.trackWaiter(parentDocumentId, cursor);
+		}
+		return cursor;
 	}
 
 	@Override
-	public Cursor queryChildDocuments(String parentDocumentId, String[] projection, String sortOrder) throws FileNotFoundException {
-		if (BuildConfig.DEBUG) Log.d(TAG, "queryChildDocuments: parentDocumentId=" + parentDocumentId);
+	public Cursor querySearchDocuments(String rootId, String query, String[] projection) throws FileNotFoundException {
+		if (BuildConfig.DEBUG) Log.d(TAG, "querySearchDocuments: rootId=" + rootId + ", query=" + query);
 
-		Cursor cursor = cursorCache.remove(parentDocumentId);
-		if (cursor == null) {
-			cursor = new ExtraLoadingCursor();
-			cursor.setNotificationUri(getContext().getContentResolver(), DocumentsContract.buildDocumentUri(AUTHORITY, parentDocumentId));
+		// The rootId is the name of the account
+		DocumentId root = DocumentId.parse(rootId + '/');
+		SearchWalker walker = getSearchWalker(root, query);
+
+		List<String> found = walker == null ? Collections.<String> emptyList() : walker.getFoundDocumentIds();
+		Cursor cursor = database.querySearch(root.toString(), query, found, projection, SEARCH_MAX_RESULTS);
+		if (walker != null && !walker.isFinished()) {
+			cursor = new LoadingCursorWrapper(cursor);
+		}
+		cursor.setNotificationUri(getContext().getContentResolver(), DocumentsContract.buildSearchDocumentsUri(AUTHORITY, rootId, query));
+
+		return cursor;
+	}
+
+	/**
+	 * @return the walk on the server that searches for this query below this root. A new walk is started if there is none for this query, in
+	 * which case the walk for an earlier query is canceled. Returns null if there is no connection for the account.
+	 */
+	private SearchWalker getSearchWalker(DocumentId root, final String query) {
+		String rootId = root.getAccountName();
+		SearchWalker walker = searchWalkers.get(rootId);
+		if (walker != null && walker.getQuery().equals(query) &&
+			(!walker.isFinished() || SystemClock.elapsedRealtime() - walker.getStarted() < SEARCH_TTL)) {
+			return walker;
+		}
 
-			new DirectoryListFetcherThread(parentDocumentId, projection).start();
+		SMBConnection connection = getConnection(rootId);
+		if (connection == null) {
+			return null;
 		}
 
+		final Uri uri = DocumentsContract.buildSearchDocumentsUri(AUTHORITY, rootId, query);
+		SearchWalker newWalker = new SearchWalker(connection, database, root, query, SEARCH_MAX_RESULTS, new SearchWalker.Listener() {
+
+			@Override
+			public void onSearchProgress(SearchWalker walker) {
+				getContext().getContentResolver().notifyChange(uri, null);
+			}
+
+		});
+
+		boolean replaced = walker == null ? searchWalkers.putIfAbsent(rootId, newWalker) == null : searchWalkers.replace(rootId, walker, newWalker);
+		if (!replaced) {
+			// Another client has started a walk in the meantime
+			return searchWalkers.get(rootId);
+		}
+		if (walker != null) {
+			walker.cancel();
+		}
+		newWalker.start();
+		return newWalker;
+	}
+
+	@Override
+	public Cursor queryRecentDocuments(String rootId, String[] projection) throws FileNotFoundException {
+		if (BuildConfig.DEBUG) Log.d(TAG, "queryRecentDocuments: rootId=" + rootId);
+
+		// The rootId is the name of the account
+		final String rootDocumentId = rootId + '/';
+		recentsValidator.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for (String documentId : database.getRecentDocumentIds(rootDocumentId, RECENTS_VALIDATE_COUNT)) {
+					if (documentCache.contains(documentId)) {
+						isCacheValid(DocumentId.parse(documentId));
+					}
+				}
+			}
+
+		});
+
+		Cursor cursor = database.queryRecent(rootDocumentId, projection, RECENTS_MAX_RESULTS);
+		cursor.setNotificationUri(getContext().getContentResolver(), DocumentsContract.buildRecentDocumentsUri(AUTHORITY, rootId));
+
 		return cursor;
 	}
 
 	@Override
 	public ParcelFileDescriptor openDocument(String documentId, String mode, CancellationSignal signal) throws FileNotFoundException {
-		if (BuildConfig.DEBUG) Log.d(TAG, "openDocument: documentId=" + documentId);
+		if (BuildConfig.DEBUG) Log.d(TAG, "openDocument: documentId=" + documentId + ", mode=" + mode);
 
-		File cacheFile = getFileForDocument(documentId);
-		if (!cacheFile.exists()) {
+		DocumentId id = DocumentId.parse(documentId);
+		int accessMode = ParcelFileDescriptor.parseMode(mode);
+		if ((accessMode & ParcelFileDescriptor.MODE_WRITE_ONLY) == 0) {
+			return openDocument(id, mode, accessMode, signal);
+		}
+
+		// The cached file must not be evicted or uploaded while the client writes it, and it must not be changed while it is uploaded
+		try {
+			documentCache.beginWrite(documentId, signal);
+		} catch (InterruptedIOException e) {
+			Log.w(TAG, "Interrupted while opening " + documentId + " for writing", e);
+			return null;
+		}
+		ParcelFileDescriptor descriptor = null;
+		try {
+			descriptor = openDocument(id, mode, accessMode, signal);
+			return descriptor;
+		} finally {
+			if (descriptor == null) {
+				documentCache.endWrite(documentId);
+			}
+		}
+	}
+
+	/**
+	 * Opens the document from the {@link DocumentCache} after downloading it, or streams it. A document that is opened for writing must have been
+	 * registered with {@link DocumentCache#beginWrite(String, CancellationSignal)}.
+	 */
+	private ParcelFileDescriptor openDocument(DocumentId id, String mode, int accessMode, CancellationSignal signal) throws FileNotFoundException {
+		String documentId = id.toString();
+		prefetcher.onForegroundRequest();
+		database.recordAccess(documentId);
+		getContext().getContentResolver().notifyChange(DocumentsContract.buildRecentDocumentsUri(AUTHORITY, id.getAccountName()), null);
+
+		File cacheFile = documentCache.getFile(documentId);
+		// A cached file with changes that have not been uploaded yet is newer than the remote file, and pinned documents are kept current by the sync
+		if (documentCache.contains(documentId) && (uploadQueue.isPending(documentId) || database.isPinned(documentId) || isCacheValid(id))) {
+			documentCache.onAccessed(documentId);
+		} else if ((accessMode & ParcelFileDescriptor.MODE_TRUNCATE) != 0) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "The document will be replaced, so there is no need to download it");
+			try {
+				cacheFile.getParentFile().mkdirs();
+				new FileOutputStream(cacheFile).close();
+			} catch (IOException e) {
+				Log.e(TAG, "Error occurred while creating the cached file", e);
+				return null;
+			}
+			// The row is replaced with the attributes of the remote file when the upload is done
+			documentCache.onStored(documentId, 0);
+		} else {
 			if (BuildConfig.DEBUG) Log.d(TAG, "We must download the document...");
 			try {
-				if (cacheFile.getParentFile().mkdirs() && !cacheFile.createNewFile()) {
-					Log.e(TAG, "File could not be created!");
+				SMBConnection connection = getConnection(id.getAccountName());
+				if (connection == null) {
 					return null;
 				}
 
-				String accountName = DocumentIdUtils.getAccountName(documentId);
-				String path = DocumentIdUtils.getPath(documentId);
-
-				SMBConnection connection = getConnection(accountName);
-				SmbFile remote = connection.openPath(path);
+				RemoteFile remote = connection.openPath(id.getPath());
 				// We have to create the document before we download it because otherwise, at least lastModified won't be correct. Don't ask why!
-				Document document = new Document(remote, documentId, false);
+				Document document = new Document(remote, id);
 
-				boolean success = downloadFile(remote, cacheFile, signal);
-				if (!success) {
-					cacheFile.delete();
+				if (shouldStream(document, mode)) {
+					database.putDocument(document);
+					directoryIndex.update(document);
+					if (RandomAccessProxy.isSupported()) {
+						if (BuildConfig.DEBUG) Log.d(TAG, "Opening the document for random access instead...");
+						return RandomAccessProxy.open(getContext(), remote, signal);
+					}
+
+					if (BuildConfig.DEBUG) Log.d(TAG, "Streaming the document instead...");
+					return DocumentStreamer.open(remote, signal);
+				}
+
+				if (!downloadToCache(remote, document, signal)) {
 					return null;
 				}
 
-				database.getWritableDatabase().insert(DocumentDatabase.TABLE_NAME, null, document.toContentValues());
+				database.putDocument(document);
+				directoryIndex.update(document);
+				documentCache.onStored(documentId, document.lastModified);
 
 			} catch (IOException e) {
+				Log.e(TAG, "Error occurred while opening the document", e);
 				return null;
 			}
 		}
+
+		if ((accessMode & ParcelFileDescriptor.MODE_WRITE_ONLY) != 0) {
+			return openForWriting(documentId, cacheFile, accessMode);
+		}
+
+		prefetcher.onDocumentOpened(id);
 		return ParcelFileDescriptor.open(cacheFile, ParcelFileDescriptor.MODE_READ_ONLY);
 	}
 
 	/**
-	 * Downloads the remote file and writes its content to the local file. Also takes care whether the signal is cancelled.
-	 *
-	 * @return true, if the file was successfully downloaded
+	 * Opens the cached file of this document for writing. The client writes at local speed and the changes are queued for upload when it closes
+	 * the file. The writer is unregistered from the {@link DocumentCache} then.
+	 */
+	private ParcelFileDescriptor openForWriting(final String documentId, File cacheFile, int accessMode) {
+		try {
+			return ParcelFileDescriptor.open(cacheFile, accessMode, uploadQueue.getHandler(), new ParcelFileDescriptor.OnCloseListener() {
+
+				@Override
+				public void onClose(IOException e) {
+					if (e == null) {
+						if (BuildConfig.DEBUG) Log.d(TAG, "The document " + documentId + " has been written, queuing its upload");
+						uploadQueue.enqueue(documentId);
+					} else {
+						// The client has crashed or reported an error, so the file may be incomplete and must not be uploaded
+						Log.w(TAG, "The document " + documentId + " was not written completely", e);
+						if (!uploadQueue.isPending(documentId)) {
+							documentCache.remove(documentId);
+						}
+					}
+					// The upload is queued now, so the file is still kept by the cache
+					documentCache.endWrite(documentId);
+				}
+
+			});
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while opening the cached file for writing", e);
+			return null;
+		}
+	}
+
+	@Override
+	public boolean uploadDocument(String documentId) {
+		DocumentId id = DocumentId.parse(documentId);
+		File cacheFile = documentCache.getFile(documentId);
+		if (!cacheFile.exists()) {
+			Log.w(TAG, "The cached file of " + documentId + " is gone, dropping its upload");
+			return true;
+		}
+
+		SMBConnection connection = getConnection(id.getAccountName());
+		if (connection == null) {
+			Log.w(TAG, "The account of " + documentId + " has been removed, dropping its upload");
+			return true;
+		}
+
+		Document document;
+		try {
+			// Upload to a temporary file first, so that a failed upload does not leave an incomplete document behind
+			RemoteFile temp = connection.openPath(id.getParent().getPath() + "." + id.getName() + UPLOAD_SUFFIX);
+			if (!documentCache.beginUpload(documentId)) {
+				// The client queues the upload again when it closes the file
+				if (BuildConfig.DEBUG) Log.d(TAG, "The document " + documentId + " is being written, retrying its upload later");
+				return false;
+			}
+			TransferStats stats;
+			try {
+				stats = DocumentUploader.upload(cacheFile, temp, DOWNLOAD_BUFFER_SIZE, true);
+			} finally {
+				documentCache.endUpload(documentId);
+			}
+			if (BuildConfig.DEBUG) Log.d(TAG, "Uploaded " + documentId + ": " + stats);
+
+			replace(connection, id, temp);
+
+			// Open it again, so that the attributes are not taken from before the upload
+			document = new Document(connection.openPath(id.getPath()), id);
+		} catch (IOException e) {
+			Log.w(TAG, "Error occurred while uploading " + documentId, e);
+			return false;
+		}
+
+		database.putDocument(document);
+		directoryIndex.update(document);
+		documentCache.onStored(documentId, document.lastModified);
+		invalidateDirectoryList(id.getParentDocumentId());
+		return true;
+	}
+
+	/**
+	 * Replaces the document with the hidden uploaded file. The old document is only moved aside until the uploaded file is in its place, so that
+	 * it is never lost if a rename fails. The uploaded file is shown before it is renamed, because a rename keeps the attributes.
 	 */
-	private boolean downloadFile(SmbFile remote, File local, CancellationSignal signal) {
-		InputStream input = null;
-		OutputStream output = null;
+	private static void replace(SMBConnection connection, DocumentId id, RemoteFile uploaded) throws IOException {
+		RemoteFile remote = connection.openPath(id.getPath());
+		if (!remote.exists()) {
+			setHidden(uploaded, false);
+			uploaded.renameTo(remote);
+			return;
+		}
+
+		String backupPath = id.getParent().getPath() + "." + id.getName() + BACKUP_SUFFIX;
+		RemoteFile backup = connection.openPath(backupPath);
+		if (backup.exists()) {
+			// Left behind by an earlier upload that failed after the document was moved back
+			backup.delete();
+		}
+		remote.renameTo(backup);
+		// Open it again, so that the attributes are not taken from before the rename
+		backup = connection.openPath(backupPath);
+		setHidden(backup, true);
 		try {
-			input = remote.getInputStream();
-			output = new FileOutputStream(local);
+			setHidden(uploaded, false);
+			uploaded.renameTo(connection.openPath(id.getPath()));
+		} catch (IOException e) {
+			try {
+				setHidden(backup, false);
+				backup.renameTo(connection.openPath(id.getPath()));
+			} catch (IOException restoreError) {
+				Log.e(TAG, "Could not move " + id + " back into place, it is kept at " + backup.getName(), restoreError);
+			}
+			throw e;
+		}
+		backup.delete();
+	}
 
-			byte[] buf = new byte[1024];
-			int bytesRead;
-			while ((bytesRead = input.read(buf)) > 0) {
-				output.write(buf, 0, bytesRead);
+	/**
+	 * Sets or clears the hidden attribute of this temporary file. A server that does not allow this does not fail the upload.
+	 */
+	private static void setHidden(RemoteFile file, boolean hidden) {
+		try {
+			file.setHidden(hidden);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not change the hidden attribute of " + file.getName(), e);
+		}
+	}
+
+	@Override
+	public String createDocument(String parentDocumentId, String mimeType, String displayName) throws FileNotFoundException {
+		if (BuildConfig.DEBUG) Log.d(TAG, "createDocument: parentDocumentId=" + parentDocumentId + ", mimeType=" + mimeType + ", displayName=" +
+			displayName);
+
+		DocumentId parent = DocumentId.parse(parentDocumentId);
+		if (parent.isRoot()) {
+			// The root supports creating documents in its shares, so this is a failed request and not an unsupported one
+			throw new FileNotFoundException("Documents cannot be created next to the shares");
+		}
+		boolean directory = DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+		String name = directory ? displayName : addExtension(parent.getAccountName(), displayName, mimeType);
+
+		SMBConnection connection = getConnection(parent.getAccountName());
+		if (connection == null) {
+			return null;
+		}
 
-				if (signal != null && signal.isCanceled()) {
-					return false;
+		prefetcher.onForegroundRequest();
+		Document document;
+		try {
+			DocumentId id = parent.getChild(name, directory);
+			RemoteFile remote = connection.openPath(id.getPath());
+			for (int i = 1; remote.exists(); i++) {
+				if (i > MAX_NAME_SUFFIX) {
+					throw new FileNotFoundException("There is no free name for " + name + " in " + parentDocumentId);
 				}
+				id = parent.getChild(getNumberedName(name, directory, i), directory);
+				remote = connection.openPath(id.getPath());
 			}
 
-			return true;
+			if (directory) {
+				remote.mkdir();
+			} else {
+				remote.createNewFile();
+			}
+			document = new Document(remote, id);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while creating the document", e);
+			return null;
+		}
+
+		database.putDocument(document);
+		invalidateDirectoryList(parentDocumentId);
+		return document.documentId.toString();
+	}
+
+	/**
+	 * @return the name with the extension of the MIME-Type appended, if the name does not already resolve to a MIME-Type
+	 */
+	private static String addExtension(String accountName, String name, String mimeType) {
+		if (MimeTypeResolver.getInstance().getMimeType(accountName, name) != null) {
+			return name;
+		}
+
+		String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+		return extension == null ? name : name + "." + extension;
+	}
+
+	/**
+	 * @return the name with the number inserted before its extension, like "name (1).txt"
+	 */
+	private static String getNumberedName(String name, boolean directory, int number) {
+		int dot = directory ? -1 : name.lastIndexOf('.');
+		if (dot <= 0) {
+			return name + " (" + number + ")";
+		}
+		return name.substring(0, dot) + " (" + number + ")" + name.substring(dot);
+	}
+
+	@Override
+	public void deleteDocument(String documentId) throws FileNotFoundException {
+		if (BuildConfig.DEBUG) Log.d(TAG, "deleteDocument: documentId=" + documentId);
+
+		DocumentId id = DocumentId.parse(documentId);
+		DocumentId parent = id.getParent();
+		if (parent == null || parent.isRoot()) {
+			// Like in createDocument, this is a failed request and not an unsupported one
+			throw new FileNotFoundException("Roots and shares cannot be deleted");
+		}
+
+		SMBConnection connection = getConnection(id.getAccountName());
+		if (connection == null) {
+			throw new FileNotFoundException("There is no account for " + documentId);
+		}
+
+		prefetcher.onForegroundRequest();
+		try {
+			connection.openPath(id.getPath()).delete();
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while deleting the document", e);
+			throw new FileNotFoundException("Could not delete " + documentId + ": " + e.getMessage());
+		}
+
+		// Also drops the queued uploads of the document and of everything below it
+		database.deleteDocument(documentId);
+		if (id.isDirectory()) {
+			documentCache.removeBelow(documentId);
+		} else {
+			documentCache.remove(documentId);
+		}
+		directoryIndex.remove(id);
+		invalidateDirectoryList(parent.toString());
+	}
 
-		} catch (Throwable t) {
-			Log.e(TAG, "Error occurred while downloading the file", t);
+	/**
+	 * Drops the fetched list of this directory and notifies the clients, so they query the changed list from the database.
+	 */
+	private void invalidateDirectoryList(String documentId) {
+		cursorCache.remove(documentId);
+		getContext().getContentResolver().notifyChange(DocumentsContract.buildDocumentUri(AUTHORITY, documentId), null);
+	}
+
+	/**
+	 * Downloads the remote file to the {@link DocumentCache}. If the document is already being downloaded, this waits for that download and uses
+	 * its result instead. When that download fails, for example because the prefetching was cancelled, this tries it once more itself.
+	 *
+	 * @return true, if the document is cached now
+	 */
+	private boolean downloadToCache(final RemoteFile remote, final Document document, final CancellationSignal signal) throws IOException {
+		String documentId = document.documentId.toString();
+		FutureTask<Boolean> running = downloads.get(documentId);
+		if (running != null) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Waiting for the running download of " + documentId);
+			if (getDownloadResult(running)) {
+				return true;
+			}
+		}
+
+		FutureTask<Boolean> download = new FutureTask<Boolean>(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws IOException {
+				return download(remote, document, signal);
+			}
+
+		});
+		running = downloads.putIfAbsent(documentId, download);
+		if (running != null) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Waiting for the running download of " + documentId);
+			return getDownloadResult(running);
+		}
+
+		try {
+			download.run();
+			return getDownloadResult(download);
 		} finally {
-			if (input != null) {
-				try {
-					input.close();
-				} catch (IOException e) {
-					Log.w(TAG, e);
-				}
+			downloads.remove(documentId, download);
+		}
+	}
+
+	/**
+	 * Waits for this download.
+	 *
+	 * @return true, if the document is cached now
+	 */
+	private static boolean getDownloadResult(FutureTask<Boolean> download) throws IOException {
+		try {
+			return download.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
 			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
 
-			if (output != null) {
-				try {
-					output.close();
-				} catch (IOException e) {
-					Log.w(TAG, e);
-				}
+	/**
+	 * Downloads the remote file to a partial file and moves it into the {@link DocumentCache} when it is complete. An interrupted download is
+	 * resumed from its checkpoint if the remote file has not changed. Only one download of a document may run at a time, see
+	 * {@link #downloadToCache(RemoteFile, Document, CancellationSignal)}.
+	 *
+	 * @return true, if the document is cached now
+	 */
+	private boolean download(RemoteFile remote, Document document, CancellationSignal signal) throws IOException {
+		String documentId = document.documentId.toString();
+		// Download to a partial file, so that clients that still read an outdated version are not disturbed
+		File partialFile = documentCache.getPartialFile(documentId);
+		boolean parallel = document.size >= PARALLEL_DOWNLOAD_MIN_SIZE;
+		int chunkSize = parallel ? parallelDownloader.getChunkSize() : 0;
+
+		// Resume an interrupted download if the remote file has not changed
+		DownloadCheckpoint checkpoint = database.getCheckpoint(documentId);
+		if (checkpoint != null && (!partialFile.exists() || !checkpoint.matches(document.lastModified, document.size, chunkSize))) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "The checkpoint of the document is outdated");
+			checkpoint = null;
+		}
+		if (checkpoint == null) {
+			database.deleteCheckpoint(documentId);
+			partialFile.delete();
+			checkpoint = new DownloadCheckpoint(documentId, document.lastModified, document.size, chunkSize);
+		}
+
+		if (partialFile.getParentFile().mkdirs() && !partialFile.createNewFile()) {
+			Log.e(TAG, "File could not be created!");
+			return false;
+		}
+		TransferStats stats;
+		if (parallel) {
+			stats = parallelDownloader.download(remote, partialFile, checkpoint, this, signal);
+		} else {
+			stats = downloadEngine.download(remote, partialFile, checkpoint, this, signal);
+		}
+		if (stats == null) {
+			// Keep the partial file, the download may be resumed from its checkpoint
+			return false;
+		}
+
+		database.deleteCheckpoint(documentId);
+		if (!documentCache.commitPartialFile(documentId)) {
+			partialFile.delete();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public long prefetchDocument(DocumentId documentId, CancellationSignal signal) {
+		String id = documentId.toString();
+		if (documentCache.contains(id)) {
+			return 0;
+		}
+
+		SMBConnection connection = getConnection(documentId.getAccountName());
+		if (connection == null) {
+			return -1;
+		}
+
+		Document document;
+		try {
+			RemoteFile remote = connection.openPath(documentId.getPath());
+			document = new Document(remote, documentId);
+			if (!downloadToCache(remote, document, signal)) {
+				return -1;
 			}
+		} catch (IOException e) {
+			Log.w(TAG, "Error occurred while prefetching the document", e);
+			return -1;
 		}
 
-		return false;
+		database.putDocument(document);
+		directoryIndex.update(document);
+		documentCache.onStored(id, document.lastModified);
+		return document.size;
+	}
+
+	@Override
+	public boolean isCached(Document document) {
+		String documentId = document.documentId.toString();
+		return documentCache.contains(documentId) && (uploadQueue.isPending(documentId) || documentCache.validate(documentId,
+			document.lastModified, document.size));
+	}
+
+	@Override
+	public boolean downloadDocument(Document document) {
+		DocumentId id = document.documentId;
+		SMBConnection connection = getConnection(id.getAccountName());
+		if (connection == null) {
+			return false;
+		}
+
+		Document downloaded;
+		try {
+			RemoteFile remote = connection.openPath(id.getPath());
+			downloaded = new Document(remote, id);
+			if (!downloadToCache(remote, downloaded, null)) {
+				return false;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Error occurred while syncing the document " + id, e);
+			return false;
+		}
+
+		database.putDocument(downloaded);
+		directoryIndex.update(downloaded);
+		documentCache.onStored(id.toString(), downloaded.lastModified);
+		return true;
+	}
+
+	@Override
+	public AssetFileDescriptor openDocumentThumbnail(String documentId, Point sizeHint, CancellationSignal signal) throws FileNotFoundException {
+		if (BuildConfig.DEBUG) Log.d(TAG, "openDocumentThumbnail: documentId=" + documentId + ", sizeHint=" + sizeHint);
+
+		DocumentId id = DocumentId.parse(documentId);
+		prefetcher.onForegroundRequest();
+		SMBConnection connection = getConnection(id.getAccountName());
+		if (connection == null) {
+			return null;
+		}
+
+		// Generate the thumbnail from the cached copy if there is a current one, so the server is not asked at all
+		File localFile = null;
+		if (documentCache.contains(documentId) && !documentCache.needsValidation(documentId)) {
+			localFile = documentCache.getFile(documentId);
+		}
+
+		File thumbnail = thumbnailLoader.load(connection, id, directoryIndex.get(id), localFile, sizeHint, signal);
+		if (thumbnail == null) {
+			return null;
+		}
+		return new AssetFileDescriptor(ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY), 0,
+			AssetFileDescriptor.UNKNOWN_LENGTH);
 	}
 
 	/**
-	 * Fetches the list of files and directories under this documentId. Caches this result and then notifies the {@link ExtraLoadingCursor} via the
-	 * {@link ContentResolver} that it shall request the new data.
+	 * Checks whether the cached file of this document is still current. This is skipped within the freshness window of the {@link DocumentCache}
+	 * and otherwise only queries the attributes of the remote file. If the server cannot be reached, the cached file is used.
+	 *
+	 * @return true, if the cached file may be used
 	 */
-	private void fetchDirectoryList(String documentId, String[] projection) {
-		String accountName = DocumentIdUtils.getAccountName(documentId);
-		String path = DocumentIdUtils.getPath(documentId);
-		SMBConnection connection = getConnection(accountName);
+	private boolean isCacheValid(DocumentId documentId) {
+		if (!documentCache.needsValidation(documentId.toString())) {
+			return true;
+		}
+
+		SMBConnection connection = getConnection(documentId.getAccountName());
+		if (connection == null) {
+			return true;
+		}
 
 		try {
-			SmbFile directory = connection.openPath(path);
-			SmbFile[] files = directory.listFiles();
+			RemoteFile remote = connection.openPath(documentId.getPath());
+			return documentCache.validate(documentId.toString(), remote.lastModified(), remote.length());
+		} catch (IOException e) {
+			Log.w(TAG, "Could not validate the cached file, using it anyway", e);
+			return true;
+		}
+	}
+
+	@Override
+	public void onCheckpoint(DownloadCheckpoint checkpoint) {
+		database.putCheckpoint(checkpoint);
+	}
+
+	/**
+	 * @return true, if this document should be read directly from the server (either with random access or streamed through a pipe) instead of
+	 * being downloaded to the cache before it is opened
+	 */
+	private boolean shouldStream(Document document, String mode) {
+		if (!"r".equals(mode)) {
+			return false;
+		}
+
+		if (document.size >= STREAM_MIN_SIZE) {
+			return true;
+		}
+
+		String mimeType = document.mimeType;
+		return mimeType != null && (mimeType.startsWith("audio/") || mimeType.startsWith("video/"));
+	}
+
+	/**
+	 * Fetches the list of files and directories under this documentId. Caches and stores this result and then notifies the {@link ExtraLoadingCursor}
+	 * via the {@link ContentResolver} that it shall request the new data.
+	 */
+	@Override
+	public void fetchDirectoryList(String documentId) {
+		DocumentId id = DocumentId.parse(documentId);
+		SMBConnection connection = getConnection(id.getAccountName());
+		if (connection == null) {
+			onFetchFailed(documentId);
+			return;
+		}
 
-			Document[] documents = new Document[files.length];
-			for (int i = 0; i < files.length; i++) {
-				SmbFile file = files[i];
-				documents[i] = new Document(file, documentId);
+		final Uri uri = DocumentsContract.buildDocumentUri(AUTHORITY, documentId);
+		DirectoryLister lister = new DirectoryLister(connection, id);
+		// Only deliver pages if the client waits for the list. Otherwise it is shown the complete stored list until the new one is finished.
+		final boolean paged = database.getDirectoryListRefreshed(documentId) < 0;
+		if (paged) {
+			final String parentDocumentId = documentId;
+			lister.setPageListener(new DirectoryLister.PageListener() {
+
+				@Override
+				public void onPage(Document[] documents) {
+					if (BuildConfig.DEBUG) Log.d(TAG, "Got a page of " + documents.length + " documents for " + parentDocumentId);
+					cursorCache.put(parentDocumentId, new CachedDirectoryList(documents, true));
+					getContext().getContentResolver().notifyChange(uri, null);
+				}
+
+			});
+		}
+
+		Document[] documents;
+		try {
+			documents = lister.list();
+			if (BuildConfig.DEBUG) Log.d(TAG, "Listed " + documentId + ": " + lister.getStats());
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while listing " + documentId, e);
+			onFetchFailed(documentId);
+			return;
+		}
+
+		database.putDirectoryList(documentId, documents);
+
+		directoryIndex.put(id, documents);
+
+		cursorCache.put(documentId, new CachedDirectoryList(documents, false));
+		getContext().getContentResolver().notifyChange(uri, null);
+
+		prefetcher.onDirectoryListed(documentId);
+	}
+
+	@Override
+	public void onFetchDropped(String documentId) {
+		onFetchFailed(documentId);
+	}
+
+	/**
+	 * Stops the loading of the clients that wait for the list of this directory, because it could not be fetched. They are given the stored list
+	 * or, if there is none, an empty one.
+	 */
+	private void onFetchFailed(String documentId) {
+		if (database.getDirectoryListRefreshed(documentId) >= 0) {
+			// The clients already got the stored list, unless they were given an incomplete list that is still loading
+			CachedDirectoryList cached = cursorCache.get(documentId);
+			if (cached == null || !cached.loading || !cursorCache.remove(documentId, cached)) {
+				return;
 			}
+		} else {
+			// Don't leave the client with a list that is still loading. The empty list expires, so the directory is fetched again later.
+			cursorCache.put(documentId, new CachedDirectoryList(new Document[0], false));
+		}
+		getContext().getContentResolver().notifyChange(DocumentsContract.buildDocumentUri(AUTHORITY, documentId), null);
+	}
 
-			Cursor cursor = new DocumentCursor(projection, documents);
+	/**
+	 * Fetches and stores the list of files and directories under this documentId, so it can be returned at once when a client opens it.
+	 */
+	@Override
+	public void prefetchDirectoryList(String documentId) {
+		listDirectory(DocumentId.parse(documentId));
+	}
 
-			lastDirectoryDocumentId = documentId;
-			lastDirectoryDocumentList = documents;
+	/**
+	 * Fetches and stores the list of files and directories under this documentId without notifying any client.
+	 */
+	@Override
+	public Document[] listDirectory(DocumentId documentId) {
+		SMBConnection connection = getConnection(documentId.getAccountName());
+		if (connection == null) {
+			return null;
+		}
 
-			cursorCache.put(documentId, cursor);
-			getContext().getContentResolver().notifyChange(DocumentsContract.buildDocumentUri(AUTHORITY, documentId), null);
-		} catch (SmbException e) {
-			e.printStackTrace();
+		Document[] documents;
+		try {
+			documents = new DirectoryLister(connection, documentId).list();
+		} catch (IOException e) {
+			Log.w(TAG, "Error occurred while listing " + documentId + " in the background", e);
+			return null;
 		}
+
+		database.putDirectoryList(documentId.toString(), documents);
+		directoryIndex.put(documentId, documents);
+		return documents;
 	}
 
-	private SMBConnection getConnection(String accountName) {
-		Account account = SMBAccountAuthenticator.getAccount(getContext(), accountName);
-		return new SMBConnection(getContext(), account);
+	@Override
+	public long getDirectoryLastModified(DocumentId documentId) {
+		SMBConnection connection = getConnection(documentId.getAccountName());
+		if (connection == null) {
+			return -1;
+		}
+
+		try {
+			return connection.openPath(documentId.getPath()).lastModified();
+		} catch (IOException e) {
+			Log.w(TAG, "Error occurred while polling " + documentId, e);
+			return -1;
+		}
+	}
+
+	@Override
+	public void onDirectoryChanged(String documentId, List<String> changedDocumentIds) {
+		ContentResolver resolver = getContext().getContentResolver();
+		for (String changedDocumentId : changedDocumentIds) {
+			resolver.notifyChange(DocumentsContract.buildDocumentUri(AUTHORITY, changedDocumentId), null, false);
+		}
+		invalidateDirectoryList(documentId);
+
+		if (database.isPinned(documentId)) {
+			// Opening pinned documents does not validate them, so the changed files have to be downloaded now
+			OfflineSyncService.start(getContext());
+		}
 	}
 
-	private File getFileForDocument(String documentId) {
-		File cacheDir = getContext().getCacheDir();
-		return new File(cacheDir.getAbsolutePath() + "/" + documentId);
+	/**
+	 * @return the pooled connection for this account or null, if there is no such account
+	 */
+	private SMBConnection getConnection(String accountName) {
+		return SMBConnectionRegistry.getInstance().get(getContext(), accountName);
 	}
 
-	private class DirectoryListFetcherThread extends Thread {
+	/**
+	 * A fetched directory list that is served to the waiting clients until it expires. While the list is still loading, it only contains the pages
+	 * that have arrived so far and does not expire.
+	 */
+	private static class CachedDirectoryList {
 
-		private final String documentId;
-		private final String[] projection;
+		final Document[] documents;
+		final boolean loading;
+		final long fetched = System.currentTimeMillis();
 
-		public DirectoryListFetcherThread(String documentId, String[] projection) {
-			this.documentId = documentId;
-			this.projection = projection;
+		CachedDirectoryList(Document[] documents, boolean loading) {
+			this.documents = documents;
+			this.loading = loading;
 		}
 
-		@Override
-		public void run() {
-			fetchDirectoryList(documentId, projection);
+		boolean isExpired() {
+			return !loading && System.currentTimeMillis() - fetched > CURSOR_CACHE_TIMEOUT;
 		}
 	}
 
@@ -0,0 +1,301 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import android.os.SystemClock;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.SMBConnection;
+import de.hahnjo.android.smbprovider.backend.RemoteEntry;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A class that searches a share for documents whose names contain all words of a query. It walks the directories with a bounded number of workers
+ * and stores the documents that it finds in the {@link DocumentDatabase}, so they can be returned while the walk is still running.
+ * <p>
+ * Directories whose lists are already stored are only asked for the matching names with an SMB wildcard, so the server filters them and only the
+ * matches are transferred. Their subdirectories are taken from the stored list. Other directories are listed completely and stored, so following
+ * searches can answer from the full-text index.
+ */
+public class SearchWalker {
+
+	private static final String TAG = SearchWalker.class.getSimpleName();
+
+	private static final int PARALLELISM = 2;
+
+	/**
+	 * The maximum number of directories that are visited by one walk.
+	 */
+	private static final int MAX_DIRECTORIES = 1000;
+
+	/**
+	 * The maximum time (in milliseconds) of one walk.
+	 */
+	private static final long TIMEOUT = 60 * 1000;
+
+	/**
+	 * The interface that is notified when the walk has found new documents or has finished.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called from the workers of the walk, so it should return quickly.
+		 */
+		void onSearchProgress(SearchWalker walker);
+	}
+
+	private final SMBConnection connection;
+	private final DocumentDatabase database;
+	private final DocumentId root;
+	private final String query;
+	private final int maxResults;
+	private final Listener listener;
+
+	private final String[] words;
+	private final String wildcard;
+
+	private final LinkedList<DocumentId> queue = new LinkedList<DocumentId>();
+	private final Set<String> found = new LinkedHashSet<String>();
+	private final long started = SystemClock.elapsedRealtime();
+	private int queued = 0;
+	private int busy = 0;
+	private volatile boolean canceled = false;
+	private volatile boolean finished = false;
+
+	/**
+	 * Creates a new walk that searches below this root for at most maxResults documents.
+	 */
+	public SearchWalker(SMBConnection connection, DocumentDatabase database, DocumentId root, String query, int maxResults, Listener listener) {
+		this.connection = connection;
+		this.database = database;
+		this.root = root;
+		this.query = query;
+		this.maxResults = maxResults;
+		this.listener = listener;
+
+		List<String> words = new ArrayList<String>();
+		String longest = "";
+		for (String word : query.toLowerCase(Locale.getDefault()).split("[\\s*?<>\"/\\\\]+")) {
+			if (word.length() > 0) {
+				words.add(word);
+				if (word.length() > longest.length()) {
+					longest = word;
+				}
+			}
+		}
+		this.words = words.toArray(new String[words.size()]);
+		// The server can only filter by one pattern, so use the most selective word
+		this.wildcard = "*" + longest + "*";
+	}
+
+	/**
+	 * Starts the workers of this walk.
+	 */
+	public void start() {
+		if (words.length == 0) {
+			finished = true;
+			return;
+		}
+
+		enqueue(Collections.singletonList(root));
+		for (int i = 0; i < PARALLELISM; i++) {
+			new Worker(i).start();
+		}
+	}
+
+	/**
+	 * Stops this walk after the directories that are currently visited.
+	 */
+	public void cancel() {
+		canceled = true;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the query of this walk
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * @return the time (see {@link SystemClock#elapsedRealtime()}) when this walk was started
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * @return true, if this walk has visited all directories, reached one of its limits or was canceled
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return the documentIds of the documents that have been found so far
+	 */
+	public synchronized List<String> getFoundDocumentIds() {
+		return new ArrayList<String>(found);
+	}
+
+	private synchronized void enqueue(List<DocumentId> directories) {
+		for (DocumentId directory : directories) {
+			if (queued >= MAX_DIRECTORIES) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "Visited the maximum number of directories for " + query);
+				break;
+			}
+			queue.add(directory);
+			queued++;
+		}
+	}
+
+	/**
+	 * @return the next directory to visit or null, if the walk is over
+	 */
+	private synchronized DocumentId take() {
+		while (queue.isEmpty() && busy > 0 && !isStopped()) {
+			try {
+				wait(1000);
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+
+		if (queue.isEmpty() || isStopped()) {
+			notifyAll();
+			return null;
+		}
+		busy++;
+		return queue.removeFirst();
+	}
+
+	private synchronized void done(List<DocumentId> subdirectories) {
+		busy--;
+		if (!isStopped()) {
+			enqueue(subdirectories);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return true, if the walk should not visit more directories
+	 */
+	private synchronized boolean isStopped() {
+		return canceled || found.size() >= maxResults || SystemClock.elapsedRealtime() - started > TIMEOUT;
+	}
+
+	/**
+	 * @return true, if this name contains all words of the query
+	 */
+	private boolean matches(String name) {
+		String lowerCaseName = name.toLowerCase(Locale.getDefault());
+		for (String word : words) {
+			if (!lowerCaseName.contains(word)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Visits this directory.
+	 *
+	 * @return the subdirectories that have to be visited as well
+	 */
+	private List<DocumentId> visit(final DocumentId directory) throws IOException {
+		List<DocumentId> subdirectories = new ArrayList<DocumentId>();
+		final List<Document> matches = new ArrayList<Document>();
+
+		String directoryDocumentId = directory.toString();
+		// A root contains the shares, which the server cannot filter
+		if (!directory.isRoot() && database.getDirectoryListRefreshed(directoryDocumentId) >= 0) {
+			final List<Document> documents = new ArrayList<Document>();
+			connection.openPath(directory.getPath()).list(wildcard, new RemoteFile.EntryListener() {
+
+				@Override
+				public void onEntry(RemoteEntry entry) {
+					documents.add(new Document(directory, entry.name, entry.directory, entry.lastModified, entry.size));
+				}
+
+			});
+
+			for (Document document : documents) {
+				if (matches(document.name)) {
+					database.putDocument(document);
+					matches.add(document);
+				}
+			}
+
+			for (String documentId : database.getChildDirectories(directoryDocumentId)) {
+				subdirectories.add(DocumentId.parse(documentId));
+			}
+		} else {
+			Document[] documents = new DirectoryLister(connection, directory).list();
+			database.putDirectoryList(directoryDocumentId, documents);
+
+			for (Document document : documents) {
+				if (document.documentId.isDirectory()) {
+					subdirectories.add(document.documentId);
+				}
+				if (matches(document.name)) {
+					matches.add(document);
+				}
+			}
+		}
+
+		if (!matches.isEmpty()) {
+			synchronized (this) {
+				for (Document document : matches) {
+					if (found.size() < maxResults) {
+						found.add(document.documentId.toString());
+					}
+				}
+			}
+			listener.onSearchProgress(this);
+		}
+		return subdirectories;
+	}
+
+	private class Worker extends Thread {
+
+		public Worker(int index) {
+			super("SearchWalker " + root + " #" + index);
+			setPriority(MIN_PRIORITY);
+		}
+
+		@Override
+		public void run() {
+			DocumentId directory;
+			while ((directory = take()) != null) {
+				List<DocumentId> subdirectories = Collections.emptyList();
+				try {
+					subdirectories = visit(directory);
+				} catch (IOException e) {
+					Log.w(TAG, "Error occurred while searching in " + directory, e);
+				} finally {
+					done(subdirectories);
+				}
+			}
+
+			synchronized (SearchWalker.this) {
+				if (finished || busy > 0) {
+					return;
+				}
+				finished = true;
+			}
+			if (BuildConfig.DEBUG) Log.d(TAG, "Finished the search for " + query + " in " + (SystemClock.elapsedRealtime() - started) + " ms");
+			listener.onSearchProgress(SearchWalker.this);
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+
+/**
+ * A persistent queue of changed documents whose cached files have to be uploaded to the server. The queue is stored in the
+ * {@link DocumentDatabase}, so uploads that did not finish before the process died are resumed. A document that is saved again before its upload
+ * has started is only uploaded once, and a document that is saved while it is being uploaded is uploaded again afterwards.
+ * <p>
+ * The uploads are done one after another by a single worker. Failed uploads are retried with an increasing delay.
+ */
+public class UploadQueue {
+
+	private static final String TAG = UploadQueue.class.getSimpleName();
+
+	/**
+	 * The delay (in milliseconds) before the first retry. It is doubled for every further attempt up to {@link #MAX_RETRY_DELAY}.
+	 */
+	private static final long RETRY_DELAY = 10 * 1000;
+	private static final long MAX_RETRY_DELAY = 15 * 60 * 1000;
+
+	/**
+	 * The interface that actually uploads the documents.
+	 */
+	public interface Uploader {
+
+		/**
+		 * Uploads the cached file of this document to the server and updates the stored information about it. This is called on the worker.
+		 *
+		 * @return true, if the upload is done. This includes uploads that can never succeed, for example because the account has been removed.
+		 */
+		boolean uploadDocument(String documentId);
+	}
+
+	private final DocumentDatabase database;
+	private final Uploader uploader;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private final Set<String> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Handler handler;
+
+	private long lastQueued = 0;
+
+	public UploadQueue(DocumentDatabase database, Uploader uploader) {
+		this.database = database;
+		this.uploader = uploader;
+
+		HandlerThread thread = new HandlerThread("UploadQueue");
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * @return a handler for the callbacks of file descriptors whose changes are queued when they are closed
+	 */
+	public Handler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * Schedules the uploads that were queued before the process was started.
+	 */
+	public void resume() {
+		for (String documentId : database.getUploadDocumentIds()) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Resuming the upload of " + documentId);
+			schedule(documentId, 0);
+		}
+	}
+
+	/**
+	 * Queues the upload of this document after its cached file has been changed.
+	 */
+	public void enqueue(String documentId) {
+		database.putUpload(documentId, nextQueued());
+		schedule(documentId, 0);
+	}
+
+	/**
+	 * @return true, if the cached file of this document has changes that have not been uploaded yet
+	 */
+	public boolean isPending(String documentId) {
+		return database.getUploadQueued(documentId) >= 0;
+	}
+
+	/**
+	 * @return the current time, but always later than the previous call, so that every save can be told apart
+	 */
+	private synchronized long nextQueued() {
+		lastQueued = Math.max(System.currentTimeMillis(), lastQueued + 1);
+		return lastQueued;
+	}
+
+	private void schedule(final String documentId, long delay) {
+		if (!scheduled.add(documentId)) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Coalescing the upload of " + documentId);
+			return;
+		}
+
+		executor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				// Saves from now on need another upload
+				scheduled.remove(documentId);
+				upload(documentId);
+			}
+
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void upload(String documentId) {
+		long queued = database.getUploadQueued(documentId);
+		if (queued < 0) {
+			// The document has been deleted in the meantime
+			return;
+		}
+
+		if (uploader.uploadDocument(documentId)) {
+			if (!database.deleteUpload(documentId, queued) && BuildConfig.DEBUG) {
+				Log.d(TAG, documentId + " has been saved again during its upload");
+			}
+			return;
+		}
+
+		int attempts = database.addUploadAttempt(documentId);
+		long delay = Math.min(RETRY_DELAY << Math.min(Math.max(attempts - 1, 0), 16), MAX_RETRY_DELAY);
+		Log.w(TAG, "Uploading " + documentId + " failed " + attempts + " times, retrying in " + delay + " ms");
+		schedule(documentId, delay);
+	}
+
+}
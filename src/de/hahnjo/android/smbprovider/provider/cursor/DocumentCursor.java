@@ -1,17 +1,20 @@
 package de.hahnjo.android.smbprovider.provider.cursor;
 
+import android.database.AbstractCursor;
 import android.database.Cursor;
-import android.database.MatrixCursor;
+import android.database.CursorWindow;
+import android.os.Bundle;
 import android.provider.DocumentsContract;
 import de.hahnjo.android.smbprovider.provider.Document;
-import jcifs.smb.SmbException;
+import de.hahnjo.android.smbprovider.provider.DocumentId;
 
 /**
- * A {@link Cursor} that contains information about documents as specified by {@link DocumentsContract.Document}.
+ * A {@link Cursor} that contains information about documents as specified by {@link DocumentsContract.Document}. The values are kept in one
+ * primitive array per requested column instead of boxed rows, and {@link CursorWindow}s are filled straight from these arrays.
  */
-public class DocumentCursor extends MatrixCursor {
+public class DocumentCursor extends AbstractCursor {
 
-	private static final String[] DEFAULT_PROJECTION = new String[] {
+	static final String[] DEFAULT_PROJECTION = new String[] {
 		DocumentsContract.Document.COLUMN_DISPLAY_NAME,
 		DocumentsContract.Document.COLUMN_DOCUMENT_ID,
 		DocumentsContract.Document.COLUMN_FLAGS,
@@ -20,43 +23,291 @@ public class DocumentCursor extends MatrixCursor {
 		DocumentsContract.Document.COLUMN_SIZE
 	};
 
+	private static final int KIND_UNKNOWN = -1;
+	private static final int KIND_DISPLAY_NAME = 0;
+	private static final int KIND_DOCUMENT_ID = 1;
+	private static final int KIND_FLAGS = 2;
+	private static final int KIND_LAST_MODIFIED = 3;
+	private static final int KIND_MIME_TYPE = 4;
+	private static final int KIND_SIZE = 5;
+
+	private final String[] columnNames;
+	private final int[] columnKinds;
+	private final int count;
+
+	// Only the arrays of requested columns are filled
+	private String[] names;
+	private DocumentId[] documentIds;
+	private int[] flags;
+	private long[] lastModified;
+	private String[] mimeTypes;
+	private long[] sizes;
+
+	private Bundle extras = Bundle.EMPTY;
+
 	/**
-	 * Creates an empty cursor.
+	 * Creates a cursor that is filled with one {@link Document}.
 	 */
-	public DocumentCursor(String[] projection) {
-		super(projection == null ? DEFAULT_PROJECTION : projection);
+	public DocumentCursor(String[] projection, Document document) {
+		this(projection, new Document[] { document });
 	}
 
 	/**
-	 * Creates a cursor that is filled with one {@link Document}.
+	 * Creates a cursor that is filled with multiple {@link Document}s.
 	 */
-	public DocumentCursor(String[] projection, Document document) throws SmbException {
-		this(projection);
+	public DocumentCursor(String[] projection, Document[] documents) {
+		columnNames = projection == null ? DEFAULT_PROJECTION : projection;
+		columnKinds = new int[columnNames.length];
+		count = documents.length;
 
-		addRow(document);
+		for (int i = 0; i < columnNames.length; i++) {
+			columnKinds[i] = getKind(columnNames[i]);
+			switch (columnKinds[i]) {
+				case KIND_DISPLAY_NAME:
+					if (names == null) {
+						names = new String[count];
+						for (int row = 0; row < count; row++) {
+							names[row] = documents[row].name;
+						}
+					}
+					break;
+				case KIND_DOCUMENT_ID:
+					if (documentIds == null) {
+						documentIds = new DocumentId[count];
+						for (int row = 0; row < count; row++) {
+							documentIds[row] = documents[row].documentId;
+						}
+					}
+					break;
+				case KIND_FLAGS:
+					if (flags == null) {
+						flags = new int[count];
+						for (int row = 0; row < count; row++) {
+							flags[row] = documents[row].flags;
+						}
+					}
+					break;
+				case KIND_LAST_MODIFIED:
+					if (lastModified == null) {
+						lastModified = new long[count];
+						for (int row = 0; row < count; row++) {
+							lastModified[row] = documents[row].lastModified;
+						}
+					}
+					break;
+				case KIND_MIME_TYPE:
+					if (mimeTypes == null) {
+						mimeTypes = new String[count];
+						for (int row = 0; row < count; row++) {
+							mimeTypes[row] = documents[row].mimeType;
+						}
+					}
+					break;
+				case KIND_SIZE:
+					if (sizes == null) {
+						sizes = new long[count];
+						for (int row = 0; row < count; row++) {
+							sizes[row] = documents[row].size;
+						}
+					}
+					break;
+			}
+		}
+	}
+
+	private static int getKind(String columnName) {
+		if (DocumentsContract.Document.COLUMN_DISPLAY_NAME.equals(columnName)) {
+			return KIND_DISPLAY_NAME;
+		} else if (DocumentsContract.Document.COLUMN_DOCUMENT_ID.equals(columnName)) {
+			return KIND_DOCUMENT_ID;
+		} else if (DocumentsContract.Document.COLUMN_FLAGS.equals(columnName)) {
+			return KIND_FLAGS;
+		} else if (DocumentsContract.Document.COLUMN_LAST_MODIFIED.equals(columnName)) {
+			return KIND_LAST_MODIFIED;
+		} else if (DocumentsContract.Document.COLUMN_MIME_TYPE.equals(columnName)) {
+			return KIND_MIME_TYPE;
+		} else if (DocumentsContract.Document.COLUMN_SIZE.equals(columnName)) {
+			return KIND_SIZE;
+		}
+		return KIND_UNKNOWN;
 	}
 
 	/**
-	 * Creates a cursor that is filled with multiple {@link Document}s.
+	 * Sets whether the cursor only contains a part of the documents and more are being loaded.
+	 *
+	 * @see DocumentsContract#EXTRA_LOADING
 	 */
-	public DocumentCursor(String[] projection, Document[] documents) throws SmbException {
-		this(projection);
+	public void setLoading(boolean loading) {
+		extras = loading ? ExtraLoadingCursor.EXTRA_LOADING_BUNDLE : Bundle.EMPTY;
+	}
 
-		for (Document document : documents) {
-			addRow(document);
+	@Override
+	public Bundle getExtras() {
+		return extras;
+	}
+
+	@Override
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	@Override
+	public int getType(int column) {
+		switch (columnKinds[column]) {
+			case KIND_FLAGS:
+			case KIND_LAST_MODIFIED:
+			case KIND_SIZE:
+				return FIELD_TYPE_INTEGER;
+			case KIND_UNKNOWN:
+				return FIELD_TYPE_NULL;
+			default:
+				return getString(column) == null ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+		}
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return getType(column) == FIELD_TYPE_NULL;
+	}
+
+	@Override
+	public String getString(int column) {
+		int row = getRow();
+		switch (columnKinds[column]) {
+			case KIND_DISPLAY_NAME:
+				return names[row];
+			case KIND_DOCUMENT_ID:
+				return documentIds[row].toString();
+			case KIND_MIME_TYPE:
+				return mimeTypes[row];
+			case KIND_UNKNOWN:
+				return null;
+			default:
+				return Long.toString(getLong(column));
+		}
+	}
+
+	@Override
+	public long getLong(int column) {
+		int row = getRow();
+		switch (columnKinds[column]) {
+			case KIND_FLAGS:
+				return flags[row];
+			case KIND_LAST_MODIFIED:
+				return lastModified[row];
+			case KIND_SIZE:
+				return sizes[row];
+			case KIND_UNKNOWN:
+				return 0;
+			default:
+				// Like MatrixCursor does for values that are no numbers
+				String value = getString(column);
+				return value == null ? 0 : Long.parseLong(value);
+		}
+	}
+
+	@Override
+	public int getInt(int column) {
+		return (int) getLong(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return (short) getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return getLong(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return getLong(column);
+	}
+
+	/**
+	 * Fills the window with the rows beginning at this position without going through the getters and moving the cursor.
+	 */
+	@Override
+	public void fillWindow(int position, CursorWindow window) {
+		if (position < 0 || position >= count) {
+			return;
+		}
+
+		window.acquireReference();
+		try {
+			window.clear();
+			window.setStartPosition(position);
+			window.setNumColumns(columnNames.length);
+
+			for (int row = position; row < count; row++) {
+				if (!window.allocRow()) {
+					break;
+				}
+				if (!putRow(window, row)) {
+					// The window is full
+					window.freeLastRow();
+					break;
+				}
+			}
+		} finally {
+			window.releaseReference();
 		}
 	}
 
 	/**
-	 * Adds a new row for this {@link Document}.
+	 * @return false, if the row did not fit into the window
 	 */
-	protected void addRow(Document document) throws SmbException {
-		newRow().add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, document.name)
-			.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, document.documentId)
-			.add(DocumentsContract.Document.COLUMN_FLAGS, 0)
-			.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, document.lastModified)
-			.add(DocumentsContract.Document.COLUMN_MIME_TYPE, document.mimeType)
-			.add(DocumentsContract.Document.COLUMN_SIZE, document.size);
+	private boolean putRow(CursorWindow window, int row) {
+		for (int column = 0; column < columnKinds.length; column++) {
+			boolean success;
+			switch (columnKinds[column]) {
+				case KIND_DISPLAY_NAME:
+					success = putString(window, names[row], row, column);
+					break;
+				case KIND_DOCUMENT_ID:
+					// The strings are only built when they are needed
+					success = putString(window, documentIds[row].toString(), row, column);
+					break;
+				case KIND_FLAGS:
+					success = window.putLong(flags[row], row, column);
+					break;
+				case KIND_LAST_MODIFIED:
+					success = window.putLong(lastModified[row], row, column);
+					break;
+				case KIND_MIME_TYPE:
+					success = putString(window, mimeTypes[row], row, column);
+					break;
+				case KIND_SIZE:
+					success = window.putLong(sizes[row], row, column);
+					break;
+				default:
+					success = window.putNull(row, column);
+					break;
+			}
+			if (!success) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean putString(CursorWindow window, String value, int row, int column) {
+		return value == null ? window.putNull(row, column) : window.putString(value, row, column);
+	}
+
+	private int getRow() {
+		int row = getPosition();
+		if (row < 0 || row >= count) {
+			throw new IndexOutOfBoundsException("Position " + row + " is out of bounds for " + count + " rows");
+		}
+		return row;
 	}
 
 }
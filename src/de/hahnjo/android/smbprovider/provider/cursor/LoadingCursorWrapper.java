@@ -0,0 +1,24 @@
+package de.hahnjo.android.smbprovider.provider.cursor;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+
+/**
+ * A {@link CursorWrapper} that tells the client that more results are being loaded, for example while a search is still running.
+ *
+ * @see DocumentsContract#EXTRA_LOADING
+ */
+public class LoadingCursorWrapper extends CursorWrapper {
+
+	public LoadingCursorWrapper(Cursor cursor) {
+		super(cursor);
+	}
+
+	@Override
+	public Bundle getExtras() {
+		return ExtraLoadingCursor.EXTRA_LOADING_BUNDLE;
+	}
+
+}
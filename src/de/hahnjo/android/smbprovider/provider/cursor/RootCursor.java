@@ -23,6 +23,9 @@ public class RootCursor extends MatrixCursor {
 		DocumentsContract.Root.COLUMN_TITLE
 	};
 
+	private static final int FLAGS = DocumentsContract.Root.FLAG_SUPPORTS_SEARCH | DocumentsContract.Root.FLAG_SUPPORTS_RECENTS |
+		DocumentsContract.Root.FLAG_SUPPORTS_CREATE;
+
 	/**
 	 * Creates a new cursor with information about all roots (specified by {@link Account}s) that are found.
 	 */
@@ -39,7 +42,7 @@ public class RootCursor extends MatrixCursor {
 
 	private void addRow(String accountName, String summary) {
 		newRow().add(DocumentsContract.Root.COLUMN_DOCUMENT_ID, accountName + '/')
-			.add(DocumentsContract.Root.COLUMN_FLAGS, 0)
+			.add(DocumentsContract.Root.COLUMN_FLAGS, FLAGS)
 			.add(DocumentsContract.Root.COLUMN_ICON, R.drawable.ic_launcher)
 			.add(DocumentsContract.Root.COLUMN_MIME_TYPES, null)
 			.add(DocumentsContract.Root.COLUMN_ROOT_ID, accountName)
@@ -1,18 +1,19 @@
 package de.hahnjo.android.smbprovider.provider.cursor;
 
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.provider.DocumentsContract;
 
 /**
  * A {@link Cursor} that contains information about one single root as specified by {@link DocumentsContract.Document}.
  */
-public class RootDocumentCursor extends DocumentCursor {
+public class RootDocumentCursor extends MatrixCursor {
 
 	/**
 	 * Creates a new cursor that is filled with information about the root that is identified by this documentId.
 	 */
 	public RootDocumentCursor(String[] projection, String documentId) {
-		super(projection);
+		super(projection == null ? DocumentCursor.DEFAULT_PROJECTION : projection);
 
 		String name = documentId.substring(0, documentId.length() - 1);
 		newRow().add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, name)
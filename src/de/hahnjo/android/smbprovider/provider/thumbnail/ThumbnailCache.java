@@ -0,0 +1,182 @@
+package de.hahnjo.android.smbprovider.provider.thumbnail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.provider.Document;
+
+/**
+ * A persistent cache of generated thumbnails in the cache directory of the app. Every thumbnail is a JPEG file whose name is derived from the
+ * documentId, the attributes of the remote file and the size of the thumbnail, so a changed file never gets an outdated thumbnail. The least
+ * recently used thumbnails are evicted when the cache exceeds its maximum size.
+ */
+public class ThumbnailCache {
+
+	private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+	private static final String DIRECTORY_NAME = "thumbnails";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Temporary files that are older than this time (in milliseconds) belong to a generation that was interrupted.
+	 */
+	private static final long TEMP_MAX_AGE = 10 * 60 * 1000;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final Comparator<Entry> LEAST_RECENTLY_USED = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry lhs, Entry rhs) {
+			return lhs.lastUsed < rhs.lastUsed ? -1 : (lhs.lastUsed == rhs.lastUsed ? 0 : 1);
+		}
+
+	};
+
+	private final File directory;
+	private final long maxSize;
+
+	/**
+	 * The size of all thumbnails or -1, if the directory has not been scanned yet.
+	 */
+	private long size = -1;
+
+	/**
+	 * Creates a new cache that keeps thumbnails with a size of up to maxSize bytes.
+	 */
+	public ThumbnailCache(Context context, long maxSize) {
+		this.directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the key of the thumbnail of this document with the given size
+	 */
+	public String getKey(Document document, int thumbnailSize) {
+		String identity = document.documentId + "\n" + document.lastModified + "\n" + document.size + "\n" + thumbnailSize;
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(identity.getBytes(UTF_8));
+			char[] key = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				key[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+				key[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+			}
+			return new String(key);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	/**
+	 * Marks the thumbnail as used, so it is evicted last.
+	 *
+	 * @return the cached thumbnail with this key or null, if there is none
+	 */
+	public File get(String key) {
+		File file = new File(directory, key);
+		if (!file.exists()) {
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * @return a new temporary file in the directory of the cache, which may be moved into the cache with {@link #commit(String, File)}
+	 */
+	public File createTempFile(String key) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		return File.createTempFile(key, TEMP_SUFFIX, directory);
+	}
+
+	/**
+	 * Moves the generated thumbnail into the cache and evicts other thumbnails if the cache has become too large.
+	 *
+	 * @return the cached thumbnail
+	 */
+	public File commit(String key, File temp) throws IOException {
+		File file = new File(directory, key);
+		long length = temp.length();
+		if (!temp.renameTo(file)) {
+			throw new IOException("Could not move " + temp + " to " + file);
+		}
+
+		synchronized (this) {
+			if (size >= 0) {
+				size += length;
+			}
+			if (size < 0 || size > maxSize) {
+				trim();
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Evicts the least recently used thumbnails until the cache is not larger than its maximum size. Also removes left-over temporary files.
+	 */
+	private synchronized void trim() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			size = 0;
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long total = 0;
+		List<Entry> entries = new ArrayList<Entry>(files.length);
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				if (now - file.lastModified() > TEMP_MAX_AGE) {
+					file.delete();
+				}
+			} else {
+				Entry entry = new Entry(file);
+				entries.add(entry);
+				total += entry.length;
+			}
+		}
+
+		if (total > maxSize) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "Trimming the thumbnails from " + total + " bytes to " + maxSize + " bytes");
+			Collections.sort(entries, LEAST_RECENTLY_USED);
+			for (int i = 0; i < entries.size() && total > maxSize; i++) {
+				Entry entry = entries.get(i);
+				if (entry.file.delete()) {
+					total -= entry.length;
+				}
+			}
+		}
+		size = total;
+	}
+
+	/**
+	 * A cached thumbnail whose attributes are read once, so they do not change while the thumbnails are sorted.
+	 */
+	private static class Entry {
+
+		final File file;
+		final long length;
+		final long lastUsed;
+
+		Entry(File file) {
+			this.file = file;
+			this.length = file.length();
+			this.lastUsed = file.lastModified();
+		}
+	}
+
+}
@@ -0,0 +1,488 @@
+package de.hahnjo.android.smbprovider.provider.thumbnail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Point;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.SMBConnection;
+import de.hahnjo.android.smbprovider.backend.RangeReader;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+import de.hahnjo.android.smbprovider.provider.Document;
+import de.hahnjo.android.smbprovider.provider.DocumentId;
+import de.hahnjo.android.smbprovider.provider.transfer.RandomAccessProxy;
+
+/**
+ * A class that generates the thumbnails of images and videos and keeps them in a {@link ThumbnailCache}. JPEG images are asked for their embedded
+ * EXIF thumbnail first, which only needs a ranged read of the beginning of the file. Other images are downloaded and decoded with a sample size
+ * close to the requested size, and videos are asked for a frame through random access.
+ * <p>
+ * The thumbnails are generated by a bounded pool that takes the newest requests first, because these are for the items that the client currently
+ * shows. The oldest requests are dropped when the queue is full.
+ */
+public class ThumbnailLoader {
+
+	private static final String TAG = ThumbnailLoader.class.getSimpleName();
+
+	private static final int THREADS = 2;
+	private static final int QUEUE_LIMIT = 32;
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	/**
+	 * The number of bytes at the beginning of a JPEG image that are read to find its EXIF thumbnail. The EXIF segment follows the start of the
+	 * image and cannot be larger than 64 KiB.
+	 */
+	private static final int EXIF_READ_SIZE = 64 * 1024;
+
+	/**
+	 * Images that are larger than this size (in bytes) are not downloaded to generate a thumbnail.
+	 */
+	private static final long DOWNSCALE_MAX_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The requested sizes are rounded up to a power of two within these bounds (in pixels), so that clients asking for similar sizes share the
+	 * cached thumbnails.
+	 */
+	private static final int MIN_THUMBNAIL_SIZE = 64;
+	private static final int MAX_THUMBNAIL_SIZE = 1024;
+
+	private static final int JPEG_QUALITY = 85;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @return true, if thumbnails can be generated for documents of this MIME-Type
+	 */
+	public static boolean isSupported(String mimeType) {
+		if (mimeType == null) {
+			return false;
+		} else if (mimeType.startsWith("video/")) {
+			// Without random access, the whole video would have to be downloaded
+			return RandomAccessProxy.isSupported();
+		}
+		return "image/jpeg".equals(mimeType) || "image/png".equals(mimeType) || "image/gif".equals(mimeType) || "image/webp".equals(mimeType) ||
+			"image/bmp".equals(mimeType) || "image/x-ms-bmp".equals(mimeType);
+	}
+
+	private final Context context;
+	private final ThumbnailCache cache;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Creates a new loader that keeps thumbnails with a size of up to cacheMaxSize bytes.
+	 */
+	public ThumbnailLoader(Context context, long cacheMaxSize) {
+		this.context = context;
+		this.cache = new ThumbnailCache(context, cacheMaxSize);
+
+		executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LastInFirstOutQueue(QUEUE_LIMIT),
+			new GeneratorThreadFactory(), new DiscardOldestTaskPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the cached thumbnail of this document or generates it. Blocks until the thumbnail has been generated or the signal is cancelled.
+	 *
+	 * @param document the attributes of the document or null, if they have to be read from the server
+	 * @param localFile a current copy of the document or null, if it has to be read from the server
+	 * @return the thumbnail or null, if none could be generated
+	 */
+	public File load(SMBConnection connection, DocumentId documentId, Document document, File localFile, Point sizeHint,
+		CancellationSignal signal) {
+		int size = getThumbnailSize(sizeHint);
+		if (document != null) {
+			File thumbnail = cache.get(cache.getKey(document, size));
+			if (thumbnail != null) {
+				return thumbnail;
+			}
+		}
+
+		final FutureTask<File> task = new FutureTask<File>(new Generator(connection, documentId, document, localFile, size, signal));
+		if (signal != null) {
+			signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+
+				@Override
+				public void onCancel() {
+					// Don't interrupt a running generation, because that would break the connection
+					task.cancel(false);
+				}
+
+			});
+		}
+		executor.execute(task);
+
+		try {
+			return task.get();
+		} catch (CancellationException e) {
+			if (BuildConfig.DEBUG) Log.d(TAG, "The thumbnail of " + documentId + " was cancelled or dropped");
+			return null;
+		} catch (InterruptedException e) {
+			task.cancel(false);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.w(TAG, "Error occurred while generating the thumbnail of " + documentId, e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the size of the thumbnail that is generated for this size hint
+	 */
+	private static int getThumbnailSize(Point sizeHint) {
+		int size = sizeHint == null ? 0 : Math.max(sizeHint.x, sizeHint.y);
+		if (size <= MIN_THUMBNAIL_SIZE) {
+			return MIN_THUMBNAIL_SIZE;
+		} else if (size >= MAX_THUMBNAIL_SIZE) {
+			return MAX_THUMBNAIL_SIZE;
+		}
+		return Integer.highestOneBit(size - 1) * 2;
+	}
+
+	/**
+	 * @return the largest power of two by which an image with this width and height can be subsampled while both sides stay at least this size
+	 */
+	private static int getSampleSize(int width, int height, int size) {
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * @return the clockwise rotation (in degrees) that is described by this EXIF orientation
+	 */
+	private static int getRotation(int orientation) {
+		switch (orientation) {
+			case ExifInterface.ORIENTATION_ROTATE_90:
+				return 90;
+			case ExifInterface.ORIENTATION_ROTATE_180:
+				return 180;
+			case ExifInterface.ORIENTATION_ROTATE_270:
+				return 270;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Rotates the bitmap and scales it down so that its shorter side is at most this size. Recycles the bitmap if a new one is created.
+	 */
+	private static Bitmap transform(Bitmap bitmap, int rotation, int size) {
+		int shorter = Math.min(bitmap.getWidth(), bitmap.getHeight());
+		float scale = shorter > size ? (float) size / shorter : 1;
+		if (rotation == 0 && scale == 1) {
+			return bitmap;
+		}
+
+		Matrix matrix = new Matrix();
+		matrix.postScale(scale, scale);
+		matrix.postRotate(rotation);
+		Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+		if (transformed != bitmap) {
+			bitmap.recycle();
+		}
+		return transformed;
+	}
+
+	private static boolean compress(Bitmap bitmap, File output) throws IOException {
+		OutputStream stream = new FileOutputStream(output);
+		try {
+			return bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream);
+		} finally {
+			stream.close();
+			bitmap.recycle();
+		}
+	}
+
+	private static void write(byte[] data, File output) throws IOException {
+		OutputStream stream = new FileOutputStream(output);
+		try {
+			stream.write(data);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Reads at most length bytes from the beginning of the remote file into the local file.
+	 */
+	private static void readRange(RemoteFile remote, int length, File local) throws IOException {
+		byte[] buffer = new byte[length];
+		int read = 0;
+		RangeReader file = remote.openRangeReader();
+		try {
+			int n;
+			while (read < length && (n = file.read(read, buffer, read, length - read)) > 0) {
+				read += n;
+			}
+		} finally {
+			file.close();
+		}
+
+		OutputStream stream = new FileOutputStream(local);
+		try {
+			stream.write(buffer, 0, read);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static void download(RemoteFile remote, File local) throws IOException {
+		InputStream input = remote.getInputStream();
+		try {
+			OutputStream output = new FileOutputStream(local);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = input.read(buffer)) > 0) {
+					output.write(buffer, 0, n);
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Generates one thumbnail on a worker thread.
+	 */
+	private class Generator implements Callable<File> {
+
+		private final SMBConnection connection;
+		private final DocumentId documentId;
+		private final File localFile;
+		private final int size;
+		private final CancellationSignal signal;
+
+		private Document document;
+		private RemoteFile remote;
+
+		Generator(SMBConnection connection, DocumentId documentId, Document document, File localFile, int size, CancellationSignal signal) {
+			this.connection = connection;
+			this.documentId = documentId;
+			this.document = document;
+			this.localFile = localFile;
+			this.size = size;
+			this.signal = signal;
+		}
+
+		@Override
+		public File call() throws IOException {
+			return generate();
+		}
+
+		private File generate() throws IOException {
+			if (document == null) {
+				document = new Document(getRemote(), documentId);
+			}
+			if (!isSupported(document.mimeType)) {
+				return null;
+			}
+
+			String key = cache.getKey(document, size);
+			// Another request may have generated it while this one was queued
+			File thumbnail = cache.get(key);
+			if (thumbnail != null) {
+				return thumbnail;
+			}
+
+			File output = cache.createTempFile(key);
+			try {
+				boolean generated;
+				if (document.mimeType.startsWith("video/")) {
+					generated = generateFromVideo(output);
+				} else {
+					generated = generateFromImage(key, output);
+				}
+				if (!generated) {
+					if (BuildConfig.DEBUG) Log.d(TAG, "Could not generate a thumbnail of " + documentId);
+					return null;
+				}
+
+				if (BuildConfig.DEBUG) Log.d(TAG, "Generated a thumbnail of " + documentId + " with " + output.length() + " bytes");
+				return cache.commit(key, output);
+			} finally {
+				output.delete();
+			}
+		}
+
+		private RemoteFile getRemote() throws IOException {
+			if (remote == null) {
+				remote = connection.openPath(documentId.getPath());
+			}
+			return remote;
+		}
+
+		private boolean isCancelled() {
+			return signal != null && signal.isCanceled();
+		}
+
+		private boolean generateFromImage(String key, File output) throws IOException {
+			int rotation = 0;
+			File source = localFile;
+			File temp = null;
+			try {
+				if ("image/jpeg".equals(document.mimeType)) {
+					File header = source;
+					if (header == null) {
+						temp = cache.createTempFile(key);
+						readRange(getRemote(), (int) Math.min(EXIF_READ_SIZE, document.size), temp);
+						header = temp;
+					}
+
+					ExifInterface exif = new ExifInterface(header.getAbsolutePath());
+					rotation = getRotation(exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+					byte[] embedded = exif.getThumbnail();
+					if (embedded != null) {
+						if (BuildConfig.DEBUG) Log.d(TAG, "Using the embedded thumbnail of " + documentId);
+						if (rotation == 0) {
+							write(embedded, output);
+							return true;
+						}
+
+						Bitmap bitmap = BitmapFactory.decodeByteArray(embedded, 0, embedded.length);
+						if (bitmap != null) {
+							return compress(transform(bitmap, rotation, size), output);
+						}
+					}
+				}
+
+				if (source == null) {
+					if (document.size > DOWNSCALE_MAX_SIZE || isCancelled()) {
+						return false;
+					}
+					if (temp == null) {
+						temp = cache.createTempFile(key);
+					}
+					download(getRemote(), temp);
+					source = temp;
+				}
+				if (isCancelled()) {
+					return false;
+				}
+
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+				if (options.outWidth <= 0 || options.outHeight <= 0) {
+					return false;
+				}
+
+				options.inJustDecodeBounds = false;
+				options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, size);
+				Bitmap bitmap = BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+				return bitmap != null && compress(transform(bitmap, rotation, size), output);
+			} finally {
+				if (temp != null) {
+					temp.delete();
+				}
+			}
+		}
+
+		private boolean generateFromVideo(File output) throws IOException {
+			MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+			ParcelFileDescriptor descriptor = null;
+			try {
+				if (localFile != null) {
+					retriever.setDataSource(localFile.getAbsolutePath());
+				} else {
+					descriptor = RandomAccessProxy.open(context, getRemote(), signal);
+					retriever.setDataSource(descriptor.getFileDescriptor());
+				}
+
+				Bitmap frame = retriever.getFrameAtTime();
+				return frame != null && compress(transform(frame, 0, size), output);
+			} catch (RuntimeException e) {
+				// The retriever reports files that it cannot handle this way
+				Log.w(TAG, "Could not retrieve a frame of " + documentId, e);
+				return false;
+			} finally {
+				retriever.release();
+				if (descriptor != null) {
+					descriptor.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A queue that hands out the newest request first.
+	 */
+	private static class LastInFirstOutQueue extends LinkedBlockingDeque<Runnable> {
+
+		LastInFirstOutQueue(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public boolean offer(Runnable runnable) {
+			return offerFirst(runnable);
+		}
+	}
+
+	/**
+	 * Drops the oldest queued request if the queue is full. Its client has most likely scrolled past the document already.
+	 */
+	private static class DiscardOldestTaskPolicy implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				return;
+			}
+
+			Runnable oldest = ((LastInFirstOutQueue) executor.getQueue()).pollLast();
+			if (oldest instanceof Future) {
+				if (BuildConfig.DEBUG) Log.d(TAG, "Queue is full, dropping the oldest request");
+				((Future<?>) oldest).cancel(false);
+			}
+			executor.execute(runnable);
+		}
+	}
+
+	private static class GeneratorThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+
+			}, "ThumbnailGenerator #" + count.incrementAndGet());
+		}
+	}
+
+}
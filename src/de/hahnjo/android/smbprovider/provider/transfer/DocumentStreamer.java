@@ -0,0 +1,118 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A class that streams the content of a {@link RemoteFile} through a pipe, so that the client can start reading before the whole file has been
+ * transferred.
+ */
+public class DocumentStreamer {
+
+	private static final String TAG = DocumentStreamer.class.getSimpleName();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Opens the remote file, reads its first part and starts a background thread that pumps the rest into a pipe. Errors while transferring are
+	 * reported to the reader. The signal is only checked until the pipe is returned, because it belongs to the call of openDocument. Afterwards the
+	 * pump stops when the reader closes its side of the pipe.
+	 *
+	 * @return the read side of the pipe
+	 * @throws OperationCanceledException if the signal has been cancelled
+	 */
+	public static ParcelFileDescriptor open(RemoteFile remote, CancellationSignal signal) throws IOException {
+		throwIfCanceled(signal);
+		// Open the stream and read from it now, so that errors like missing permissions are reported to the caller of openDocument
+		InputStream input = remote.getInputStream();
+
+		byte[] buf = new byte[BUFFER_SIZE];
+		ParcelFileDescriptor[] pipe;
+		int bytesRead;
+		boolean opened = false;
+		try {
+			throwIfCanceled(signal);
+			bytesRead = input.read(buf);
+			throwIfCanceled(signal);
+
+			pipe = ParcelFileDescriptor.createReliablePipe();
+			opened = true;
+		} finally {
+			if (!opened) {
+				input.close();
+			}
+		}
+
+		new PumpThread(remote.getName(), input, pipe[1], buf, bytesRead).start();
+		return pipe[0];
+	}
+
+	private static void throwIfCanceled(CancellationSignal signal) {
+		if (signal != null) {
+			signal.throwIfCanceled();
+		}
+	}
+
+	private static class PumpThread extends Thread {
+
+		private final InputStream input;
+		private final ParcelFileDescriptor output;
+		private final byte[] buf;
+		private final int firstBytesRead;
+
+		/**
+		 * Creates a pump that first writes the bytes that have already been read into the buffer.
+		 */
+		public PumpThread(String name, InputStream input, ParcelFileDescriptor output, byte[] buf, int firstBytesRead) {
+			super("DocumentStreamer " + name);
+			this.input = input;
+			this.output = output;
+			this.buf = buf;
+			this.firstBytesRead = firstBytesRead;
+		}
+
+		@Override
+		public void run() {
+			OutputStream stream = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+			String error = null;
+			try {
+				int bytesRead = firstBytesRead;
+				while (bytesRead > 0) {
+					stream.write(buf, 0, bytesRead);
+					bytesRead = input.read(buf);
+				}
+				if (BuildConfig.DEBUG) Log.d(TAG, getName() + " finished");
+
+			} catch (IOException e) {
+				// This also happens if the reader has closed its side of the pipe
+				Log.w(TAG, "Error occurred while streaming the file", e);
+				error = e.getMessage() != null ? e.getMessage() : e.toString();
+			} finally {
+				try {
+					input.close();
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+
+				try {
+					if (error != null) {
+						output.closeWithError(error);
+					} else {
+						stream.close();
+					}
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+	}
+
+}
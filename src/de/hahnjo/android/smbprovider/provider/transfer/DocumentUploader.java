@@ -0,0 +1,60 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.os.SystemClock;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A class that uploads a local file to a {@link RemoteFile}, replacing its content.
+ */
+public class DocumentUploader {
+
+	private static final String TAG = DocumentUploader.class.getSimpleName();
+
+	/**
+	 * Writes the content of the local file to the remote file.
+	 *
+	 * @param hidden if the remote file shall be hidden. It is hidden right after it has been opened, because opening it may replace its attributes.
+	 * A server that does not allow this does not fail the upload.
+	 * @return the statistics of this transfer. The time to the first byte is the time until the remote file was opened.
+	 */
+	public static TransferStats upload(File local, RemoteFile remote, int bufferSize, boolean hidden) throws IOException {
+		long start = SystemClock.elapsedRealtime();
+		long bytes = 0;
+		long timeToFirstByte;
+
+		InputStream input = new FileInputStream(local);
+		try {
+			OutputStream output = remote.getOutputStream();
+			timeToFirstByte = SystemClock.elapsedRealtime() - start;
+			try {
+				if (hidden) {
+					try {
+						remote.setHidden(true);
+					} catch (IOException e) {
+						Log.w(TAG, "Could not hide " + remote.getName(), e);
+					}
+				}
+				byte[] buffer = new byte[bufferSize];
+				int n;
+				while ((n = input.read(buffer)) > 0) {
+					output.write(buffer, 0, n);
+					bytes += n;
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+
+		return new TransferStats(remote.getName(), bytes, timeToFirstByte, SystemClock.elapsedRealtime() - start);
+	}
+
+}
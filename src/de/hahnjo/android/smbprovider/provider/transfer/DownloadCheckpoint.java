@@ -0,0 +1,109 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+/**
+ * A class that records the progress of a download, so that it can be resumed later if the remote file has not changed in the meantime.
+ */
+public class DownloadCheckpoint {
+
+	/**
+	 * The interface that stores checkpoints while a download is running.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called whenever the downloaded data up to this checkpoint has been written to the disk. This may be called from multiple threads, but
+		 * never concurrently for the same checkpoint.
+		 */
+		void onCheckpoint(DownloadCheckpoint checkpoint);
+	}
+
+	public final String documentId;
+	public final long lastModified;
+	public final long size;
+	public final int chunkSize;
+
+	private long bytesDone;
+	private final byte[] chunks;
+
+	/**
+	 * Creates a new checkpoint for a download that has not started yet. A chunkSize of 0 means that the file is downloaded sequentially.
+	 */
+	public DownloadCheckpoint(String documentId, long lastModified, long size, int chunkSize) {
+		this(documentId, lastModified, size, chunkSize, 0, null);
+	}
+
+	/**
+	 * Creates a checkpoint with the given progress. For a parallel download, chunks is a bitmap of the completed chunks.
+	 */
+	public DownloadCheckpoint(String documentId, long lastModified, long size, int chunkSize, long bytesDone, byte[] chunks) {
+		this.documentId = documentId;
+		this.lastModified = lastModified;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.bytesDone = bytesDone;
+
+		if (chunkSize > 0) {
+			int bitmapSize = (getChunkCount() + 7) / 8;
+			if (chunks == null || chunks.length != bitmapSize) {
+				chunks = new byte[bitmapSize];
+			}
+		}
+		this.chunks = chunks;
+	}
+
+	/**
+	 * @return true, if this checkpoint may be used to resume a download of the remote file with these attributes
+	 */
+	public boolean matches(long lastModified, long size, int chunkSize) {
+		return this.lastModified == lastModified && this.size == size && this.chunkSize == chunkSize;
+	}
+
+	/**
+	 * @return the number of chunks of a parallel download
+	 */
+	public int getChunkCount() {
+		if (chunkSize <= 0) {
+			return 0;
+		}
+		return (int) ((size + chunkSize - 1) / chunkSize);
+	}
+
+	/**
+	 * @return the number of bytes that have been written to the disk
+	 */
+	public synchronized long getBytesDone() {
+		return bytesDone;
+	}
+
+	/**
+	 * Sets the number of bytes of a sequential download that have been written to the disk.
+	 */
+	public synchronized void setBytesDone(long bytesDone) {
+		this.bytesDone = bytesDone;
+	}
+
+	/**
+	 * @return true, if this chunk of a parallel download has been written to the disk
+	 */
+	public synchronized boolean isChunkDone(int chunk) {
+		return (chunks[chunk / 8] & (1 << (chunk % 8))) != 0;
+	}
+
+	/**
+	 * Marks this chunk of a parallel download as written to the disk.
+	 */
+	public synchronized void setChunkDone(int chunk, long length) {
+		if (!isChunkDone(chunk)) {
+			chunks[chunk / 8] |= (1 << (chunk % 8));
+			bytesDone += length;
+		}
+	}
+
+	/**
+	 * @return a copy of the bitmap of completed chunks or null, if this is a sequential download
+	 */
+	public synchronized byte[] getChunks() {
+		return chunks == null ? null : chunks.clone();
+	}
+
+}
@@ -0,0 +1,243 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A class that downloads a {@link RemoteFile} to a local file. A reader thread receives the data from the server while the calling thread writes it
+ * to the disk, so both overlap. They pass a fixed number of reusable buffers between them. The progress is recorded in a {@link DownloadCheckpoint},
+ * so that an interrupted download can be resumed.
+ */
+public class DownloadEngine {
+
+	private static final String TAG = DownloadEngine.class.getSimpleName();
+
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	private static final int BUFFER_COUNT = 4;
+
+	/**
+	 * The number of bytes after which the progress is written to a checkpoint.
+	 */
+	private static final long CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+
+	private final int bufferSize;
+
+	/**
+	 * Creates a new engine that uses buffers of the given size (in bytes).
+	 */
+	public DownloadEngine(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Downloads the remote file and writes its content to the local file, starting at the progress of the checkpoint. The local file is
+	 * preallocated with the expected size. Also takes care whether the signal is cancelled.
+	 *
+	 * @return the statistics of this transfer or null, if it failed or was cancelled
+	 */
+	public TransferStats download(RemoteFile remote, File local, DownloadCheckpoint checkpoint, DownloadCheckpoint.Listener listener,
+		CancellationSignal signal) {
+		long start = SystemClock.elapsedRealtime();
+		long offset = checkpoint.getBytesDone();
+		if (BuildConfig.DEBUG && offset > 0) Log.d(TAG, "Resuming " + remote.getName() + " at " + offset);
+
+		InputStream input;
+		try {
+			input = remote.getInputStream();
+			long skipped = 0;
+			while (skipped < offset) {
+				long n = input.skip(offset - skipped);
+				if (n <= 0) {
+					throw new IOException("Could not skip to " + offset);
+				}
+				skipped += n;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while opening the remote file", e);
+			return null;
+		}
+
+		BlockingQueue<Buffer> free = new ArrayBlockingQueue<Buffer>(BUFFER_COUNT);
+		BlockingQueue<Buffer> filled = new ArrayBlockingQueue<Buffer>(BUFFER_COUNT + 1);
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			free.add(new Buffer(bufferSize));
+		}
+
+		ReaderThread reader = new ReaderThread(remote.getName(), input, free, filled, start);
+		reader.start();
+
+		RandomAccessFile output = null;
+		FileChannel channel = null;
+		long written = offset;
+		boolean success = false;
+		try {
+			output = new RandomAccessFile(local, "rw");
+			if (checkpoint.size > 0) {
+				output.setLength(checkpoint.size);
+			}
+			channel = output.getChannel();
+
+			while (true) {
+				Buffer buffer = filled.take();
+				if (buffer.length < 0) {
+					break;
+				}
+
+				ByteBuffer data = ByteBuffer.wrap(buffer.data, 0, buffer.length);
+				while (data.hasRemaining()) {
+					written += channel.write(data, written);
+				}
+				free.put(buffer);
+
+				if (written - checkpoint.getBytesDone() >= CHECKPOINT_INTERVAL) {
+					saveCheckpoint(channel, written, checkpoint, listener);
+				}
+
+				if (signal != null && signal.isCanceled()) {
+					return null;
+				}
+			}
+
+			if (reader.error != null) {
+				Log.e(TAG, "Error occurred while downloading the file", reader.error);
+				return null;
+			}
+
+			// The remote file may have changed in the meantime
+			output.setLength(written);
+			success = true;
+
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while writing the file", e);
+		} catch (InterruptedException e) {
+			Log.w(TAG, e);
+		} finally {
+			reader.interrupt();
+
+			if (!success && channel != null && written > checkpoint.getBytesDone()) {
+				// Keep what we have got so far
+				try {
+					saveCheckpoint(channel, written, checkpoint, listener);
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+
+		if (!success) {
+			return null;
+		}
+
+		TransferStats stats = new TransferStats(remote.getName(), written - offset, reader.timeToFirstByte, SystemClock.elapsedRealtime() - start);
+		if (BuildConfig.DEBUG) Log.d(TAG, stats.toString());
+		return stats;
+	}
+
+	/**
+	 * Makes sure that the written data is on the disk and then records it in the checkpoint.
+	 */
+	private static void saveCheckpoint(FileChannel channel, long written, DownloadCheckpoint checkpoint, DownloadCheckpoint.Listener listener)
+		throws IOException {
+		channel.force(false);
+		checkpoint.setBytesDone(written);
+		listener.onCheckpoint(checkpoint);
+	}
+
+	private static class Buffer {
+
+		final byte[] data;
+		int length;
+
+		Buffer(int size) {
+			data = new byte[size];
+		}
+
+		Buffer(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static class ReaderThread extends Thread {
+
+		private static final Buffer END = new Buffer(new byte[0], -1);
+
+		private final InputStream input;
+		private final BlockingQueue<Buffer> free;
+		private final BlockingQueue<Buffer> filled;
+		private final long start;
+
+		volatile IOException error;
+		volatile long timeToFirstByte = -1;
+
+		public ReaderThread(String name, InputStream input, BlockingQueue<Buffer> free, BlockingQueue<Buffer> filled, long start) {
+			super("DownloadEngine " + name);
+			this.input = input;
+			this.free = free;
+			this.filled = filled;
+			this.start = start;
+		}
+
+		@Override
+		public void run() {
+			try {
+				boolean end = false;
+				while (!end && !isInterrupted()) {
+					Buffer buffer = free.take();
+
+					// Fill the whole buffer to save writes
+					buffer.length = 0;
+					while (buffer.length < buffer.data.length) {
+						int bytesRead = input.read(buffer.data, buffer.length, buffer.data.length - buffer.length);
+						if (bytesRead <= 0) {
+							end = true;
+							break;
+						}
+						if (timeToFirstByte < 0) {
+							timeToFirstByte = SystemClock.elapsedRealtime() - start;
+						}
+						buffer.length += bytesRead;
+					}
+
+					if (buffer.length > 0) {
+						filled.put(buffer);
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				// The writer does not need any more data
+			} finally {
+				try {
+					input.close();
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+
+				// There is always room for the end, because the filled queue is larger than the number of buffers
+				filled.offer(END);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.backend.RangeReader;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A class that downloads a {@link RemoteFile} over several connections at the same time. The file is split into chunks that are read by multiple
+ * workers with their own {@link RangeReader} and written at their offsets in the local file. Completed chunks are recorded in a
+ * {@link DownloadCheckpoint}, so that an interrupted download only fetches the missing chunks later.
+ */
+public class ParallelDownloader {
+
+	private static final String TAG = ParallelDownloader.class.getSimpleName();
+
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private static final int READ_SIZE = 64 * 1024;
+	private static final int MAX_RETRIES = 3;
+
+	private final int chunkSize;
+	private final int parallelism;
+
+	/**
+	 * Creates a new downloader that splits files into chunks of the given size (in bytes) and reads up to parallelism chunks at the same time.
+	 */
+	public ParallelDownloader(int chunkSize, int parallelism) {
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the size of the chunks (in bytes)
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Downloads the chunks of the remote file that are missing in the checkpoint and writes them to the local file. The checkpoint must have been
+	 * created with the chunk size of this downloader. Also takes care whether the signal is cancelled.
+	 *
+	 * @return the statistics of this transfer or null, if it failed or was cancelled
+	 */
+	public TransferStats download(RemoteFile remote, File local, DownloadCheckpoint checkpoint, DownloadCheckpoint.Listener listener,
+		CancellationSignal signal) {
+		long start = SystemClock.elapsedRealtime();
+		long size = checkpoint.size;
+		long offset = checkpoint.getBytesDone();
+		int chunks = checkpoint.getChunkCount();
+		if (BuildConfig.DEBUG && offset > 0) Log.d(TAG, "Resuming " + remote.getName() + " with " + offset + " bytes done");
+
+		RandomAccessFile output = null;
+		try {
+			output = new RandomAccessFile(local, "rw");
+			output.setLength(size);
+
+			Transfer transfer = new Transfer(remote, size, output.getChannel(), checkpoint, listener, start);
+			if (signal != null) {
+				signal.setOnCancelListener(transfer);
+			}
+
+			Worker[] workers = new Worker[Math.min(parallelism, chunks)];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Worker(transfer, i);
+				workers[i].start();
+			}
+			for (Worker worker : workers) {
+				worker.join();
+			}
+
+			if (signal != null) {
+				signal.setOnCancelListener(null);
+			}
+			if (transfer.failed || transfer.canceled) {
+				return null;
+			}
+
+			TransferStats stats = new TransferStats(remote.getName(), size - offset, transfer.timeToFirstByte.get(),
+				SystemClock.elapsedRealtime() - start);
+			if (BuildConfig.DEBUG) Log.d(TAG, stats.toString() + " with " + workers.length + " workers");
+			return stats;
+
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while writing the file", e);
+		} catch (InterruptedException e) {
+			Log.w(TAG, e);
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * The state of one download that is shared between its workers.
+	 */
+	private class Transfer implements CancellationSignal.OnCancelListener {
+
+		final RemoteFile remote;
+		final long size;
+		final FileChannel channel;
+		final DownloadCheckpoint checkpoint;
+		final DownloadCheckpoint.Listener listener;
+		final int chunks;
+		final long start;
+
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final AtomicLong timeToFirstByte = new AtomicLong(-1);
+		volatile boolean canceled = false;
+		volatile boolean failed = false;
+
+		Transfer(RemoteFile remote, long size, FileChannel channel, DownloadCheckpoint checkpoint, DownloadCheckpoint.Listener listener, long start) {
+			this.remote = remote;
+			this.size = size;
+			this.channel = channel;
+			this.checkpoint = checkpoint;
+			this.listener = listener;
+			this.chunks = checkpoint.getChunkCount();
+			this.start = start;
+		}
+
+		/**
+		 * Makes sure that this chunk is on the disk and then records it in the checkpoint.
+		 */
+		void onChunkDone(int chunk, long length) throws IOException {
+			channel.force(false);
+			synchronized (checkpoint) {
+				checkpoint.setChunkDone(chunk, length);
+				listener.onCheckpoint(checkpoint);
+			}
+		}
+
+		@Override
+		public void onCancel() {
+			canceled = true;
+		}
+
+		boolean isStopped() {
+			return canceled || failed;
+		}
+	}
+
+	private class Worker extends Thread {
+
+		private final Transfer transfer;
+		private final byte[] buf = new byte[READ_SIZE];
+
+		private RangeReader file;
+
+		public Worker(Transfer transfer, int index) {
+			super("ParallelDownloader " + transfer.remote.getName() + " #" + index);
+			this.transfer = transfer;
+		}
+
+		@Override
+		public void run() {
+			try {
+				int chunk;
+				while (!transfer.isStopped() && (chunk = transfer.nextChunk.getAndIncrement()) < transfer.chunks) {
+					if (transfer.checkpoint.isChunkDone(chunk)) {
+						continue;
+					}
+
+					if (!downloadChunk(chunk)) {
+						Log.e(TAG, "Giving up on chunk " + chunk + " of " + transfer.remote.getName());
+						transfer.failed = true;
+					}
+				}
+			} finally {
+				closeFile();
+			}
+		}
+
+		/**
+		 * Downloads this chunk and retries it if an error occurs.
+		 *
+		 * @return false, if the chunk could not be downloaded
+		 */
+		private boolean downloadChunk(int chunk) {
+			long offset = (long) chunk * chunkSize;
+			long end = Math.min(offset + chunkSize, transfer.size);
+
+			for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+				try {
+					if (file == null) {
+						file = transfer.remote.openRangeReader();
+					}
+
+					long position = offset;
+					while (position < end) {
+						if (transfer.isStopped()) {
+							// The chunk is incomplete, so it is not recorded
+							return true;
+						}
+
+						int bytesRead = file.read(position, buf, 0, (int) Math.min(buf.length, end - position));
+						if (bytesRead <= 0) {
+							throw new IOException("Unexpected end of file at " + position);
+						}
+						transfer.timeToFirstByte.compareAndSet(-1, SystemClock.elapsedRealtime() - transfer.start);
+
+						ByteBuffer data = ByteBuffer.wrap(buf, 0, bytesRead);
+						while (data.hasRemaining()) {
+							position += transfer.channel.write(data, position);
+						}
+					}
+
+					transfer.onChunkDone(chunk, end - offset);
+					return true;
+
+				} catch (IOException e) {
+					Log.w(TAG, "Error occurred while downloading chunk " + chunk + " (attempt " + (attempt + 1) + ")", e);
+					// Start over with a new handle
+					closeFile();
+				}
+			}
+			return false;
+		}
+
+		private void closeFile() {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+				file = null;
+			}
+		}
+	}
+
+}
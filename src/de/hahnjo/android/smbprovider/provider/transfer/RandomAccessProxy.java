@@ -0,0 +1,197 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+import de.hahnjo.android.smbprovider.BuildConfig;
+import de.hahnjo.android.smbprovider.backend.RangeReader;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+
+/**
+ * A {@link ProxyFileDescriptorCallback} that serves reads at arbitrary offsets directly from a {@link RangeReader}. Recently read blocks are
+ * kept in memory and sequential reads fetch the following blocks ahead of time, so seeking in a large file only costs a few requests.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class RandomAccessProxy extends ProxyFileDescriptorCallback {
+
+	private static final String TAG = RandomAccessProxy.class.getSimpleName();
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final int MAX_CACHED_BLOCKS = 64;
+	private static final int READ_AHEAD_BLOCKS = 8;
+
+	/**
+	 * @return true, if this Android version supports proxy file descriptors
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+	}
+
+	/**
+	 * Opens the remote file for random access and reads its first blocks, which most clients need first to find out the format. The signal is
+	 * checked between these requests.
+	 *
+	 * @return a seekable file descriptor whose reads are served from the remote file
+	 * @throws OperationCanceledException if the signal has been cancelled
+	 */
+	public static ParcelFileDescriptor open(Context context, RemoteFile remote, CancellationSignal signal) throws IOException {
+		throwIfCanceled(signal);
+		HandlerThread thread = new HandlerThread("RandomAccessProxy " + remote.getName());
+		thread.start();
+
+		RandomAccessProxy proxy = null;
+		boolean opened = false;
+		try {
+			proxy = new RandomAccessProxy(remote, thread);
+			throwIfCanceled(signal);
+			proxy.getBlock(0);
+			throwIfCanceled(signal);
+
+			StorageManager storageManager = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+			ParcelFileDescriptor fd = storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY, proxy,
+				new Handler(thread.getLooper()));
+			opened = true;
+			return fd;
+		} finally {
+			if (!opened) {
+				if (proxy != null) {
+					proxy.onRelease();
+				} else {
+					thread.quit();
+				}
+			}
+		}
+	}
+
+	private static void throwIfCanceled(CancellationSignal signal) {
+		if (signal != null) {
+			signal.throwIfCanceled();
+		}
+	}
+
+	private final String name;
+	private final RangeReader file;
+	private final long size;
+	private final HandlerThread thread;
+
+	private final Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(MAX_CACHED_BLOCKS, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+			return size() > MAX_CACHED_BLOCKS;
+		}
+
+	};
+	private long lastBlock = -1;
+
+	private RandomAccessProxy(RemoteFile remote, HandlerThread thread) throws IOException {
+		this.name = remote.getName();
+		this.file = remote.openRangeReader();
+		this.size = file.length();
+		this.thread = thread;
+	}
+
+	@Override
+	public long onGetSize() throws ErrnoException {
+		return size;
+	}
+
+	@Override
+	public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+		int read = 0;
+		try {
+			while (read < size && offset + read < this.size) {
+				long position = offset + read;
+				long index = position / BLOCK_SIZE;
+				byte[] block = getBlock(index);
+
+				int blockOffset = (int) (position - index * BLOCK_SIZE);
+				int length = Math.min(size - read, block.length - blockOffset);
+				if (length <= 0) {
+					break;
+				}
+				System.arraycopy(block, blockOffset, data, read, length);
+				read += length;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error occurred while reading " + name, e);
+			throw new ErrnoException("onRead", OsConstants.EIO);
+		}
+		return read;
+	}
+
+	@Override
+	public void onRelease() {
+		if (BuildConfig.DEBUG) Log.d(TAG, "onRelease: " + name);
+
+		blocks.clear();
+		try {
+			file.close();
+		} catch (IOException e) {
+			Log.w(TAG, e);
+		}
+		thread.quitSafely();
+	}
+
+	/**
+	 * @return the block with this index, either from the cache or from the server
+	 */
+	private byte[] getBlock(long index) throws IOException {
+		byte[] block = blocks.get(index);
+		if (block != null) {
+			lastBlock = index;
+			return block;
+		}
+
+		// Sequential reads fetch the following blocks in the same request
+		int count = 1;
+		if (index == lastBlock + 1) {
+			count = READ_AHEAD_BLOCKS;
+		}
+		lastBlock = index;
+
+		long start = index * BLOCK_SIZE;
+		int length = (int) Math.min((long) count * BLOCK_SIZE, size - start);
+		byte[] buf = new byte[length];
+
+		int read = 0;
+		while (read < length) {
+			int bytesRead = file.read(start + read, buf, read, length - read);
+			if (bytesRead <= 0) {
+				break;
+			}
+			read += bytesRead;
+		}
+
+		// Split the data into blocks and cache them
+		for (int i = 0; i * BLOCK_SIZE < read; i++) {
+			int blockLength = Math.min(BLOCK_SIZE, read - i * BLOCK_SIZE);
+			byte[] data = new byte[blockLength];
+			System.arraycopy(buf, i * BLOCK_SIZE, data, 0, blockLength);
+			if (i == 0) {
+				block = data;
+			}
+			blocks.put(index + i, data);
+		}
+
+		if (block == null) {
+			block = new byte[0];
+		}
+		return block;
+	}
+
+}
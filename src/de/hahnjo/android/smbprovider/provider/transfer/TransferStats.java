@@ -0,0 +1,39 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+/**
+ * A class that holds statistics about one transfer.
+ */
+public class TransferStats {
+
+	public final String name;
+	public final long bytes;
+	public final long timeToFirstByte;
+	public final long duration;
+
+	/**
+	 * Creates new statistics. All times are in milliseconds.
+	 */
+	public TransferStats(String name, long bytes, long timeToFirstByte, long duration) {
+		this.name = name;
+		this.bytes = bytes;
+		this.timeToFirstByte = timeToFirstByte;
+		this.duration = duration;
+	}
+
+	/**
+	 * @return the average throughput of this transfer
+	 */
+	public long getBytesPerSecond() {
+		if (duration <= 0) {
+			return bytes;
+		}
+		return bytes * 1000 / duration;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + bytes + " bytes in " + duration + " ms (" + (getBytesPerSecond() / 1024) + " KB/s, first byte after " +
+			timeToFirstByte + " ms)";
+	}
+
+}
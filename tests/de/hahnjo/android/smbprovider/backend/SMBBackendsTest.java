@@ -0,0 +1,25 @@
+package de.hahnjo.android.smbprovider.backend;
+
+import junit.framework.TestCase;
+
+public class SMBBackendsTest extends TestCase {
+
+	public void testCreate() {
+		assertTrue(create(SMBBackends.TYPE_JCIFS) instanceof JcifsBackend);
+		assertTrue(create(SMBBackends.TYPE_SMBJ) instanceof SmbjBackend);
+	}
+
+	public void testCreateDefault() {
+		// Accounts that were created before the backend could be selected have none
+		assertTrue(create(null) instanceof JcifsBackend);
+		assertTrue(create("unknown") instanceof JcifsBackend);
+	}
+
+	private static SMBBackend create(String type) {
+		SMBBackend backend = SMBBackends.create(type, "server", "user", "domain", "password");
+		// Neither backend has sent a request yet
+		backend.close();
+		return backend;
+	}
+
+}
@@ -0,0 +1,261 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.provider.DocumentsContract;
+import de.hahnjo.android.smbprovider.SMBConnection;
+import de.hahnjo.android.smbprovider.backend.RangeReader;
+import de.hahnjo.android.smbprovider.backend.RemoteEntry;
+import de.hahnjo.android.smbprovider.backend.RemoteFile;
+import de.hahnjo.android.smbprovider.backend.SMBBackend;
+import junit.framework.TestCase;
+
+public class DirectoryListerTest extends TestCase {
+
+	private static final DocumentId DIRECTORY = DocumentId.parse("account/share/dir/");
+
+	private FakeBackend backend;
+	private DirectoryLister lister;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		backend = new FakeBackend();
+		lister = new DirectoryLister(new SMBConnection("server", backend), DIRECTORY);
+	}
+
+	public void testListFromEnumeration() throws IOException {
+		backend.entries.add(new RemoteEntry("sub", true, 1000, 0, true));
+		backend.entries.add(new RemoteEntry("a.txt", false, 2000, 10, true));
+		backend.entries.add(new RemoteEntry("b.jpg", false, 3000, 20, true));
+
+		Document[] documents = lister.list();
+		assertEquals(3, documents.length);
+		assertDocument(documents[0], "account/share/dir/sub/", DocumentsContract.Document.MIME_TYPE_DIR, 1000, 0);
+		assertDocument(documents[1], "account/share/dir/a.txt", "text/plain", 2000, 10);
+		assertDocument(documents[2], "account/share/dir/b.jpg", "image/jpeg", 3000, 20);
+
+		// The attributes come from the enumeration, so no entry is queried on its own
+		assertEquals(1, backend.lists);
+		assertTrue(backend.queried.isEmpty());
+
+		DirectoryLister.Stats stats = lister.getStats();
+		assertEquals(3, stats.entries);
+		assertEquals(1, stats.enumerations);
+		assertEquals(0, stats.attributeQueries);
+		assertEquals(1, stats.getRequests());
+	}
+
+	public void testQueryIncompleteEntries() throws IOException {
+		backend.entries.add(new RemoteEntry("a.txt", false, 0, 0, false));
+		backend.entries.add(new RemoteEntry("b.txt", false, 2000, 20, true));
+		backend.entries.add(new RemoteEntry("c.txt", false, 0, 0, false));
+		backend.attributes.put("/share/dir/a.txt", new long[] { 1000, 10 });
+		backend.attributes.put("/share/dir/c.txt", new long[] { 3000, 30 });
+
+		Document[] documents = lister.list();
+		assertEquals(3, documents.length);
+		assertDocument(documents[0], "account/share/dir/a.txt", "text/plain", 1000, 10);
+		assertDocument(documents[1], "account/share/dir/b.txt", "text/plain", 2000, 20);
+		assertDocument(documents[2], "account/share/dir/c.txt", "text/plain", 3000, 30);
+
+		// Only the incomplete entries are queried
+		Set<String> expected = new HashSet<String>();
+		expected.add("/share/dir/a.txt");
+		expected.add("/share/dir/c.txt");
+		assertEquals(expected, backend.queried);
+
+		DirectoryLister.Stats stats = lister.getStats();
+		assertEquals(1, stats.enumerations);
+		assertEquals(2, stats.attributeQueries);
+		assertEquals(3, stats.getRequests());
+	}
+
+	public void testFailedAttributeQueryKeepsEntry() throws IOException {
+		backend.entries.add(new RemoteEntry("a.txt", false, 0, 0, false));
+
+		Document[] documents = lister.list();
+		assertEquals(1, documents.length);
+		assertDocument(documents[0], "account/share/dir/a.txt", "text/plain", 0, 0);
+		assertEquals(1, lister.getStats().attributeQueries);
+	}
+
+	public void testPages() throws IOException {
+		backend.entriesPerListRequest = 2;
+		for (int i = 0; i < 7; i++) {
+			backend.entries.add(new RemoteEntry("file" + i, false, 1000, 10, true));
+		}
+
+		final List<Integer> pages = new ArrayList<Integer>();
+		lister.setPageListener(new DirectoryLister.PageListener() {
+
+			@Override
+			public void onPage(Document[] documents) {
+				pages.add(documents.length);
+			}
+
+		});
+
+		assertEquals(7, lister.list().length);
+		// The first page has as many entries as one enumeration response and every page doubles the size
+		assertEquals(2, pages.size());
+		assertEquals(2, pages.get(0).intValue());
+		assertEquals(4, pages.get(1).intValue());
+	}
+
+	public void testListFailure() {
+		backend.listError = new IOException("Access denied");
+		try {
+			lister.list();
+			fail("The error of the enumeration was not thrown");
+		} catch (IOException e) {
+			assertSame(backend.listError, e);
+		}
+	}
+
+	private static void assertDocument(Document document, String documentId, String mimeType, long lastModified, long size) {
+		assertEquals(documentId, document.documentId.toString());
+		assertEquals(mimeType, document.mimeType);
+		assertEquals(lastModified, document.lastModified);
+		assertEquals(size, document.size);
+	}
+
+	/**
+	 * A backend with one directory that returns the given entries and answers attribute queries of its files.
+	 */
+	private static class FakeBackend implements SMBBackend {
+
+		final List<RemoteEntry> entries = new ArrayList<RemoteEntry>();
+		final Map<String, long[]> attributes = new HashMap<String, long[]>();
+		final Set<String> queried = Collections.synchronizedSet(new HashSet<String>());
+
+		int entriesPerListRequest = 100;
+		IOException listError;
+		int lists = 0;
+
+		@Override
+		public RemoteFile openPath(String path) {
+			return new FakeFile(this, path);
+		}
+
+		@Override
+		public int getEntriesPerListRequest() {
+			return entriesPerListRequest;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class FakeFile implements RemoteFile {
+
+		private final FakeBackend backend;
+		private final String path;
+
+		FakeFile(FakeBackend backend, String path) {
+			this.backend = backend;
+			this.path = path;
+		}
+
+		@Override
+		public String getName() {
+			return path.substring(path.lastIndexOf('/') + 1);
+		}
+
+		@Override
+		public boolean exists() throws IOException {
+			return query() != null;
+		}
+
+		@Override
+		public boolean isDirectory() throws IOException {
+			query();
+			return path.endsWith("/");
+		}
+
+		@Override
+		public long lastModified() throws IOException {
+			return getAttributes()[0];
+		}
+
+		@Override
+		public long length() throws IOException {
+			return getAttributes()[1];
+		}
+
+		private long[] query() {
+			backend.queried.add(path);
+			return backend.attributes.get(path);
+		}
+
+		private long[] getAttributes() throws IOException {
+			long[] attributes = query();
+			if (attributes == null) {
+				throw new IOException(path + " does not exist");
+			}
+			return attributes;
+		}
+
+		@Override
+		public void list(String wildcard, EntryListener listener) throws IOException {
+			backend.lists++;
+			if (backend.listError != null) {
+				throw backend.listError;
+			}
+			for (RemoteEntry entry : backend.entries) {
+				listener.onEntry(entry);
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public RangeReader openRangeReader() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void renameTo(RemoteFile destination) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void delete() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void mkdir() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void createNewFile() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setHidden(boolean hidden) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
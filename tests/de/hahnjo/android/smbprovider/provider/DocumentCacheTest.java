@@ -0,0 +1,252 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.AndroidTestCase;
+import de.hahnjo.android.smbprovider.provider.transfer.DownloadCheckpoint;
+
+public class DocumentCacheTest extends AndroidTestCase {
+
+	private static final long MAX_SIZE = 10;
+	private static final long OLD = System.currentTimeMillis() - 24 * 60 * 60 * 1000;
+
+	private File cacheDir;
+	private DocumentDatabase database;
+	private DocumentCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		cacheDir = new File(getContext().getCacheDir(), getClass().getSimpleName());
+		delete(cacheDir);
+
+		// Neither the database nor the cache directory of the app are touched
+		Context context = new ContextWrapper(getContext()) {
+
+			@Override
+			public File getCacheDir() {
+				return cacheDir;
+			}
+
+		};
+		database = new DocumentDatabase(context, null);
+		cache = new DocumentCache(context, database, MAX_SIZE, 60 * 1000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		database.close();
+		delete(cacheDir);
+		super.tearDown();
+	}
+
+	public void testContains() throws IOException {
+		store("account/share/file", 1, OLD);
+		assertTrue(cache.contains("account/share/file"));
+		assertFalse(cache.contains("account/share/other"));
+	}
+
+	public void testContainsKeepsFileWithoutRow() throws IOException {
+		// The file of a download that has not been committed yet
+		File file = writeFile("account/share/file", 1);
+		assertFalse(cache.contains("account/share/file"));
+		assertTrue(file.exists());
+	}
+
+	public void testContainsDropsRowWithoutFile() throws IOException {
+		store("account/share/file", 1, OLD);
+		assertTrue(cache.getFile("account/share/file").delete());
+		assertFalse(cache.contains("account/share/file"));
+
+		// The row is gone, so the document is not cached even if the file appears again
+		writeFile("account/share/file", 1);
+		assertFalse(cache.contains("account/share/file"));
+	}
+
+	public void testTrimEvictsLeastRecentlyAccessed() throws IOException {
+		store("account/share/a", 4, OLD);
+		store("account/share/b", 4, OLD + 2);
+		store("account/share/c", 4, OLD + 1);
+		cache.trim();
+
+		assertFalse(cache.contains("account/share/a"));
+		assertTrue(cache.contains("account/share/b"));
+		assertTrue(cache.contains("account/share/c"));
+	}
+
+	public void testTrimKeepsSmallCache() throws IOException {
+		store("account/share/a", 5, OLD);
+		store("account/share/b", 5, OLD + 1);
+		cache.trim();
+
+		assertTrue(cache.contains("account/share/a"));
+		assertTrue(cache.contains("account/share/b"));
+	}
+
+	public void testTrimKeepsPendingUploads() throws IOException {
+		store("account/share/a", 4, OLD);
+		store("account/share/b", 4, OLD + 1);
+		store("account/share/c", 4, OLD + 2);
+		database.putUpload("account/share/a", OLD);
+		cache.trim();
+
+		assertTrue(cache.contains("account/share/a"));
+		assertFalse(cache.contains("account/share/b"));
+		assertTrue(cache.contains("account/share/c"));
+	}
+
+	public void testTrimKeepsPinned() throws IOException {
+		store("account/share/pinned/dir/a", 4, OLD);
+		store("account/share/pinnedfile", 4, OLD + 1);
+		store("account/share/b", 4, OLD + 2);
+		database.setPinnedDirectories("account/", Arrays.asList("account/share/pinned/"));
+		cache.trim();
+
+		assertTrue(cache.contains("account/share/pinned/dir/a"));
+		// Only documents below the pinned directory are kept, not the ones that just share its prefix
+		assertFalse(cache.contains("account/share/pinnedfile"));
+		assertTrue(cache.contains("account/share/b"));
+	}
+
+	public void testTrimKeepsWrittenAndUploaded() throws IOException {
+		store("account/share/written", 4, OLD);
+		store("account/share/uploaded", 4, OLD + 1);
+		store("account/share/c", 4, OLD + 2);
+		store("account/share/d", 4, OLD + 3);
+		cache.beginWrite("account/share/written", null);
+		assertTrue(cache.beginUpload("account/share/uploaded"));
+		cache.trim();
+
+		assertTrue(cache.contains("account/share/written"));
+		assertTrue(cache.contains("account/share/uploaded"));
+		assertFalse(cache.contains("account/share/c"));
+		assertFalse(cache.contains("account/share/d"));
+	}
+
+	public void testNoUploadWhileWritten() throws IOException {
+		cache.beginWrite("account/share/file", null);
+		cache.beginWrite("account/share/file", null);
+		assertFalse(cache.beginUpload("account/share/file"));
+
+		// The file is uploaded only after every writer has closed it
+		cache.endWrite("account/share/file");
+		assertFalse(cache.beginUpload("account/share/file"));
+		cache.endWrite("account/share/file");
+		assertTrue(cache.beginUpload("account/share/file"));
+		cache.endUpload("account/share/file");
+	}
+
+	public void testRemoveBelow() throws IOException {
+		store("account/share/dir/a", 1, OLD);
+		store("account/share/dir/sub/b", 1, OLD);
+		store("account/share/dirfile", 1, OLD);
+		File partial = cache.getPartialFile("account/share/dir/c");
+		writeFile(partial, 1);
+		database.putCheckpoint(new DownloadCheckpoint("account/share/dir/c", OLD, 2, 0));
+
+		cache.removeBelow("account/share/dir/");
+
+		assertFalse(cache.contains("account/share/dir/a"));
+		assertFalse(cache.getFile("account/share/dir/a").exists());
+		assertFalse(cache.contains("account/share/dir/sub/b"));
+		assertFalse(partial.exists());
+		assertNull(database.getCheckpoint("account/share/dir/c"));
+		// Only documents below the directory are removed, not the ones that just share its prefix
+		assertTrue(cache.contains("account/share/dirfile"));
+	}
+
+	public void testRemoveOrphans() throws IOException {
+		store("account/share/cached", 1, OLD);
+		store("account/share/deleted", 1, OLD);
+		assertTrue(cache.getFile("account/share/deleted").delete());
+
+		File old = writeFile("account/share/old", 1);
+		assertTrue(old.setLastModified(OLD));
+		File recent = writeFile("account/share/recent", 1);
+
+		File partial = cache.getPartialFile("account/share/partial");
+		writeFile(partial, 1);
+		assertTrue(partial.setLastModified(OLD));
+		database.putCheckpoint(new DownloadCheckpoint("account/share/partial", OLD, 2, 0));
+
+		File abandoned = cache.getPartialFile("account/share/abandoned");
+		writeFile(abandoned, 1);
+		assertTrue(abandoned.setLastModified(OLD));
+
+		cache.removeOrphans();
+
+		assertTrue(cache.contains("account/share/cached"));
+		assertFalse(cache.contains("account/share/deleted"));
+		// Files without a row are only deleted once they are old enough, because they may still be downloading
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+		// Partial files are kept for their checkpoint
+		assertTrue(partial.exists());
+		assertFalse(abandoned.exists());
+	}
+
+	public void testRemoveOrphansDeletesOldCheckpoints() throws IOException {
+		File partial = cache.getPartialFile("account/share/partial");
+		writeFile(partial, 1);
+		assertTrue(partial.setLastModified(OLD));
+		database.putCheckpoint(new DownloadCheckpoint("account/share/partial", OLD, 2, 0));
+
+		ContentValues values = new ContentValues();
+		values.put(DocumentDatabase.DownloadsColumns.UPDATED, 0);
+		database.getWritableDatabase().update(DocumentDatabase.DOWNLOADS_TABLE_NAME, values, null, null);
+
+		cache.removeOrphans();
+
+		assertNull(database.getCheckpoint("account/share/partial"));
+		assertFalse(partial.exists());
+	}
+
+	/**
+	 * Writes the file of this document and adds its row with the given time of the last access. The row is not added with
+	 * {@link DocumentCache#onStored(String, long)}, because that trims the cache in the background.
+	 */
+	private void store(String documentId, int size, long lastAccessed) throws IOException {
+		writeFile(documentId, size);
+
+		ContentValues values = new ContentValues();
+		values.put(DocumentDatabase.CacheColumns.DOCUMENT_ID, documentId);
+		values.put(DocumentDatabase.CacheColumns.SIZE, size);
+		values.put(DocumentDatabase.CacheColumns.LAST_ACCESSED, lastAccessed);
+		values.put(DocumentDatabase.CacheColumns.LAST_MODIFIED, 0);
+		values.put(DocumentDatabase.CacheColumns.VALIDATED, lastAccessed);
+		database.getWritableDatabase().insert(DocumentDatabase.CACHE_TABLE_NAME, null, values);
+	}
+
+	private File writeFile(String documentId, int size) throws IOException {
+		File file = cache.getFile(documentId);
+		writeFile(file, size);
+		return file;
+	}
+
+	private static void writeFile(File file, int size) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(new byte[size]);
+		} finally {
+			output.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
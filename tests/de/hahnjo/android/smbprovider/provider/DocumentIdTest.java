@@ -0,0 +1,95 @@
+package de.hahnjo.android.smbprovider.provider;
+
+import junit.framework.TestCase;
+
+public class DocumentIdTest extends TestCase {
+
+	public void testRoot() {
+		DocumentId root = DocumentId.parse("account/");
+		assertTrue(root.isRoot());
+		assertTrue(root.isDirectory());
+		assertEquals("account", root.getAccountName());
+		assertEquals("account", root.getName());
+		assertEquals("/", root.getPath());
+		assertNull(root.getParent());
+		assertEquals("", root.getParentDocumentId());
+		assertEquals("account/", root.toString());
+	}
+
+	public void testDirectory() {
+		DocumentId directory = DocumentId.parse("account/share/dir/");
+		assertFalse(directory.isRoot());
+		assertTrue(directory.isDirectory());
+		assertEquals("account", directory.getAccountName());
+		assertEquals("dir", directory.getName());
+		assertEquals("/share/dir/", directory.getPath());
+		assertEquals("account/share/", directory.getParentDocumentId());
+		assertEquals("account/share/dir/", directory.toString());
+	}
+
+	public void testFile() {
+		DocumentId file = DocumentId.parse("account/share/dir/file.txt");
+		assertFalse(file.isRoot());
+		assertFalse(file.isDirectory());
+		assertEquals("account", file.getAccountName());
+		assertEquals("file.txt", file.getName());
+		assertEquals("/share/dir/file.txt", file.getPath());
+		assertEquals("account/share/dir/", file.getParentDocumentId());
+		assertEquals(DocumentId.parse("account/share/dir/"), file.getParent());
+		assertEquals("account/share/dir/file.txt", file.toString());
+	}
+
+	public void testInvalid() {
+		for (String documentId : new String[] { "", "account", "/share/file" }) {
+			try {
+				DocumentId.parse(documentId);
+				fail(documentId + " was parsed");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testEquals() {
+		DocumentId directory = DocumentId.parse("account/share/dir/");
+		assertEquals(directory, DocumentId.parse("account/share/dir/"));
+		assertEquals(directory.hashCode(), DocumentId.parse("account/share/dir/").hashCode());
+
+		DocumentId file = DocumentId.parse("account/share/dir/file");
+		assertEquals(file, DocumentId.parse("account/share/dir/file"));
+		assertEquals(file.hashCode(), DocumentId.parse("account/share/dir/file").hashCode());
+
+		// A file and a directory with the same name are different documents
+		assertFalse(file.equals(DocumentId.parse("account/share/dir/file/")));
+		assertFalse(directory.equals(DocumentId.parse("other/share/dir/")));
+	}
+
+	public void testGetChild() {
+		DocumentId directory = DocumentId.parse("account/share/");
+		assertEquals(DocumentId.parse("account/share/dir/"), directory.getChild("dir", true));
+		assertEquals(DocumentId.parse("account/share/file"), directory.getChild("file", false));
+		assertEquals("account/share/dir/", directory.getChild("dir", true).toString());
+
+		try {
+			DocumentId.parse("account/share/file").getChild("child", false);
+			fail("A file has no children");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testManyDirectories() {
+		// More children than the sweep interval must not lose the nodes that are still in use
+		DocumentId parent = DocumentId.parse("account/share/");
+		DocumentId[] children = new DocumentId[200];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = parent.getChild("dir" + i, true);
+		}
+		System.gc();
+		for (int i = 0; i < children.length; i++) {
+			assertEquals(children[i], DocumentId.parse("account/share/dir" + i + "/"));
+			assertEquals(parent, children[i].getParent());
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package de.hahnjo.android.smbprovider.provider.transfer;
+
+import junit.framework.TestCase;
+
+public class DownloadCheckpointTest extends TestCase {
+
+	private static final String DOCUMENT_ID = "account/share/file";
+
+	public void testSequential() {
+		DownloadCheckpoint checkpoint = new DownloadCheckpoint(DOCUMENT_ID, 1000, 5000, 0);
+		assertEquals(0, checkpoint.getChunkCount());
+		assertNull(checkpoint.getChunks());
+		assertEquals(0, checkpoint.getBytesDone());
+
+		checkpoint.setBytesDone(1234);
+		assertEquals(1234, checkpoint.getBytesDone());
+	}
+
+	public void testChunkCount() {
+		assertEquals(1, new DownloadCheckpoint(DOCUMENT_ID, 0, 1, 1024).getChunkCount());
+		assertEquals(1, new DownloadCheckpoint(DOCUMENT_ID, 0, 1024, 1024).getChunkCount());
+		assertEquals(2, new DownloadCheckpoint(DOCUMENT_ID, 0, 1025, 1024).getChunkCount());
+		assertEquals(0, new DownloadCheckpoint(DOCUMENT_ID, 0, 0, 1024).getChunkCount());
+
+		// Sizes beyond the range of an int must not overflow
+		assertEquals(3, new DownloadCheckpoint(DOCUMENT_ID, 0, 3L * Integer.MAX_VALUE, Integer.MAX_VALUE).getChunkCount());
+	}
+
+	public void testChunks() {
+		DownloadCheckpoint checkpoint = new DownloadCheckpoint(DOCUMENT_ID, 1000, 10 * 1024 + 1, 1024);
+		assertEquals(11, checkpoint.getChunkCount());
+		assertEquals(2, checkpoint.getChunks().length);
+
+		checkpoint.setChunkDone(0, 1024);
+		checkpoint.setChunkDone(9, 1024);
+		checkpoint.setChunkDone(10, 1);
+		assertTrue(checkpoint.isChunkDone(0));
+		assertFalse(checkpoint.isChunkDone(1));
+		assertTrue(checkpoint.isChunkDone(9));
+		assertTrue(checkpoint.isChunkDone(10));
+		assertEquals(2049, checkpoint.getBytesDone());
+
+		// A chunk is only counted once
+		checkpoint.setChunkDone(9, 1024);
+		assertEquals(2049, checkpoint.getBytesDone());
+	}
+
+	public void testRestore() {
+		DownloadCheckpoint checkpoint = new DownloadCheckpoint(DOCUMENT_ID, 1000, 10 * 1024, 1024);
+		checkpoint.setChunkDone(3, 1024);
+		checkpoint.setChunkDone(8, 1024);
+
+		DownloadCheckpoint restored = new DownloadCheckpoint(DOCUMENT_ID, 1000, 10 * 1024, 1024, checkpoint.getBytesDone(), checkpoint.getChunks());
+		assertEquals(2048, restored.getBytesDone());
+		for (int chunk = 0; chunk < restored.getChunkCount(); chunk++) {
+			assertEquals(chunk == 3 || chunk == 8, restored.isChunkDone(chunk));
+		}
+
+		// The bitmap is a copy
+		checkpoint.getChunks()[0] = 0;
+		assertTrue(checkpoint.isChunkDone(3));
+	}
+
+	public void testRestoreInvalidChunks() {
+		// A bitmap that does not fit the chunk count is discarded
+		DownloadCheckpoint restored = new DownloadCheckpoint(DOCUMENT_ID, 1000, 10 * 1024, 1024, 0, new byte[] { -1 });
+		assertEquals(2, restored.getChunks().length);
+		assertFalse(restored.isChunkDone(0));
+	}
+
+	public void testMatches() {
+		DownloadCheckpoint checkpoint = new DownloadCheckpoint(DOCUMENT_ID, 1000, 5000, 1024);
+		assertTrue(checkpoint.matches(1000, 5000, 1024));
+		assertFalse(checkpoint.matches(1001, 5000, 1024));
+		assertFalse(checkpoint.matches(1000, 5001, 1024));
+		assertFalse(checkpoint.matches(1000, 5000, 0));
+	}
+
+}